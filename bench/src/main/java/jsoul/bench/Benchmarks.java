@@ -0,0 +1,30 @@
+package jsoul.bench;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the jsoul benchmarks with the GC profiler, so that allocation rates are reported
+ * alongside throughput. Accepts the usual JMH command line options, for example a
+ * benchmark name pattern or "-p notesPerTrack=100000" to narrow the workloads.
+ * @author Andrew Goldin
+ */
+public class Benchmarks {
+
+	/**
+	 * Runs the benchmarks.
+	 * @param args JMH command line options
+	 * @throws CommandLineOptionException if the options cannot be parsed
+	 * @throws RunnerException if a benchmark fails
+	 */
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		Options options = new OptionsBuilder()
+				.parent(cmd)
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,84 @@
+package jsoul.bench;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import jsoul.midi.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for writing and reading MIDI files, comparing the native jsoul encoder
+ * and decoder with the javax.sound.midi path where one exists.
+ * @author Andrew Goldin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MidiFileBenchmark {
+
+	/**
+	 * Encodes the sequence with MidiFileWriter into memory.
+	 * @param w the workload
+	 * @return the encoded file
+	 * @throws IOException never, as the output is in memory
+	 * @throws InvalidMidiDataException if the sequence cannot be encoded
+	 */
+	@Benchmark
+	public byte[] write(Workload w) throws IOException, InvalidMidiDataException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(w.fileBytes.length);
+		new MidiFileWriter(out).write(w.sequence);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encodes the sequence into memory through createMidiSequence and MidiSystem.write,
+	 * as a baseline for write.
+	 * @param w the workload
+	 * @return the encoded file
+	 * @throws IOException never, as the output is in memory
+	 */
+	@Benchmark
+	public byte[] writeJavax(Workload w) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(w.fileBytes.length);
+		javax.sound.midi.Sequence seq = w.sequence.createMidiSequence();
+		MidiSystem.write(seq, MidiSystem.getMidiFileTypes(seq)[0], out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Writes the sequence to a file with MidiFile.writeToFile.
+	 * @param w the workload
+	 * @return the file name
+	 */
+	@Benchmark
+	public String writeToFile(Workload w) {
+		MidiFile m = new MidiFile(w.file.getPath());
+		m.writeToFile(w.sequence);
+		return m.getFileName();
+	}
+
+	/**
+	 * Decodes the encoded file from memory with MidiFileReader.
+	 * @param w the workload
+	 * @return the decoded sequence
+	 * @throws InvalidMidiDataException if the file cannot be decoded
+	 */
+	@Benchmark
+	public Sequence read(Workload w) throws InvalidMidiDataException {
+		return new MidiFileReader(ByteBuffer.wrap(w.fileBytes)).read();
+	}
+
+	/**
+	 * Reads the sequence back from a file with MidiFile.getSequence.
+	 * @param w the workload
+	 * @return the decoded sequence
+	 */
+	@Benchmark
+	public Sequence getSequence(Workload w) {
+		return new MidiFile(w.file.getPath()).getSequence();
+	}
+
+}
@@ -0,0 +1,64 @@
+package jsoul.bench;
+import java.util.concurrent.TimeUnit;
+import jsoul.midi.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks for building, rendering, flattening and transposing Sequences in memory.
+ * @author Andrew Goldin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SequenceBenchmark {
+
+	/**
+	 * Builds a new sequence of Notes and Chords.
+	 * @param w the workload parameters
+	 * @return the built sequence
+	 */
+	@Benchmark
+	public Sequence build(Workload w) {
+		return Workload.build(w.trackCount, w.notesPerTrack, w.chordDensity);
+	}
+
+	/**
+	 * Converts the sequence into a javax.sound.midi.Sequence.
+	 * @param w the workload
+	 * @return the converted sequence
+	 */
+	@Benchmark
+	public javax.sound.midi.Sequence render(Workload w) {
+		return w.sequence.createMidiSequence();
+	}
+
+	/**
+	 * Flattens every track of the sequence into a single Track with Track.add(Track).
+	 * @param w the workload
+	 * @return the flattened track
+	 */
+	@Benchmark
+	public Track flatten(Workload w) {
+		Track t = new Track();
+		for (int i = 0; i < w.sequence.getNumTracks(); i++) {
+			t.add(w.sequence.getTrack(i));
+		}
+		return t;
+	}
+
+	/**
+	 * Transposes the whole sequence up and back down a half step, through
+	 * Playable.transpose.
+	 * @param w the workload
+	 * @return the transposed sequence
+	 */
+	@Benchmark
+	public Sequence transpose(Workload w) {
+		w.sequence.transpose(1);
+		w.sequence.transpose(-1);
+		return w.sequence;
+	}
+
+}
@@ -0,0 +1,103 @@
+package jsoul.bench;
+import java.io.*;
+import java.util.Random;
+import javax.sound.midi.InvalidMidiDataException;
+import jsoul.midi.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A randomly generated Sequence shared by the benchmarks, parameterized by the number
+ * of tracks, the number of elements per track and the fraction of elements that are
+ * chords. The same seed is used every time, so runs are comparable.
+ * @author Andrew Goldin
+ */
+@State(Scope.Benchmark)
+public class Workload {
+
+	private static final long SEED = 42;
+
+	@Param({"1", "16"})
+	public int trackCount;
+
+	@Param({"1000", "100000"})
+	public int notesPerTrack;
+
+	@Param({"0.0", "0.5"})
+	public double chordDensity;
+
+	/**
+	 * The generated sequence.
+	 */
+	public Sequence sequence;
+
+	/**
+	 * The generated sequence encoded as a MIDI file.
+	 */
+	public byte[] fileBytes;
+
+	/**
+	 * A temporary file containing fileBytes, deleted after the benchmark.
+	 */
+	public File file;
+
+	/**
+	 * Generates the sequence and writes it to a temporary file.
+	 * @throws IOException if the temporary file cannot be written
+	 * @throws InvalidMidiDataException if the sequence cannot be encoded
+	 */
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InvalidMidiDataException {
+		sequence = build(trackCount, notesPerTrack, chordDensity);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new MidiFileWriter(out).write(sequence);
+		fileBytes = out.toByteArray();
+		file = File.createTempFile("jsoul-bench", ".mid");
+		FileOutputStream fileOut = new FileOutputStream(file);
+		try {
+			fileOut.write(fileBytes);
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	/**
+	 * Deletes the temporary file.
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Builds a random sequence of notes and three or four note chords.
+	 * @param trackCount the number of tracks
+	 * @param notesPerTrack the number of notes and chords in each track
+	 * @param chordDensity the fraction of elements that are chords (0-1)
+	 * @return the generated sequence
+	 */
+	public static Sequence build(int trackCount, int notesPerTrack, double chordDensity) {
+		Random random = new Random(SEED);
+		Sequence s = new Sequence();
+		for (int t = 0; t < trackCount; t++) {
+			Track track = new Track();
+			track.setInstrument(t);
+			for (int i = 0; i < notesPerTrack; i++) {
+				int root = 36 + random.nextInt(48);
+				int velocity = Dynamics.PIANO + random.nextInt(Dynamics.FORTISSIMO - Dynamics.PIANO);
+				int duration = Note.SIXTEENTH << random.nextInt(4);
+				if (random.nextDouble() < chordDensity) {
+					int[] pitches = random.nextBoolean()
+							? new int[] { root, root + 4, root + 7 }
+							: new int[] { root, root + 3, root + 7, root + 10 };
+					track.add(new Chord(pitches, velocity, duration));
+				}
+				else {
+					track.add(new Note(root, velocity, duration));
+				}
+			}
+			s.add(track);
+		}
+		return s;
+	}
+
+}
@@ -0,0 +1,298 @@
+package jsoul.midi;
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.midi.*;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+
+/**
+ * Renders Sequences to audio offline, writing WAV files. Each sequence is played by its
+ * own instance of the Java software synthesizer, which is driven as a stream rather than
+ * through a sound card: all of the events are given to it up front with their times,
+ * and the audio is pulled from it as fast as it can be computed, usually many times
+ * faster than real time. The audio is written to the file as it is produced, so only
+ * a small buffer is held in memory however long the sequence is.
+ * <p>
+ * A renderer can be used from several threads at once, and renderAll spreads many
+ * sequences over a pool of threads, one synthesizer each. The soundbank is loaded only
+ * once and shared by all of the synthesizers.
+ * <p>
+ * The software synthesizer is only reachable through an interface in the JDK's
+ * com.sun.media.sound package. From Java 9 on, that package must be exported for this
+ * class to work, by running java with the option
+ * --add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED
+ * @author Andrew Goldin
+ */
+public class AudioRenderer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private AudioFormat format;
+	private int numThreads;
+	private long tail = 1000000;
+	private Soundbank soundbank;
+
+	/**
+	 * Constructs a renderer producing CD quality audio (44.1 kHz, 16 bit stereo), with
+	 * one thread per available processor for renderAll.
+	 */
+	public AudioRenderer() {
+		this(new AudioFormat(44100, 16, 2, true, false), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a renderer producing audio in the given format, which must be signed
+	 * little-endian PCM of 16 bits or more, with the given number of threads for
+	 * renderAll. 8 bit WAV data is unsigned, so 8 bit formats are not accepted.
+	 * @param format the format of the audio
+	 * @param threads the number of threads renderAll uses
+	 */
+	public AudioRenderer(AudioFormat format, int threads) {
+		if (!AudioFormat.Encoding.PCM_SIGNED.equals(format.getEncoding()) || format.isBigEndian()
+				|| format.getSampleSizeInBits() <= 8) {
+			throw new IllegalArgumentException("Need signed little-endian PCM of 16 bits or more, got " + format);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread, got " + threads);
+		}
+		this.format = format;
+		numThreads = threads;
+	}
+
+	/**
+	 * Sets how long the audio goes on after the last note ends, so that notes can fade
+	 * out. The default is one second.
+	 * @param microseconds the length of the tail in microseconds
+	 */
+	public void setTail(long microseconds) {
+		if (microseconds < 0) {
+			throw new IllegalArgumentException("Tail cannot be negative: " + microseconds);
+		}
+		tail = microseconds;
+	}
+
+	/**
+	 * Gets how long the audio goes on after the last note ends.
+	 * @return the length of the tail in microseconds
+	 */
+	public long getTail() {
+		return tail;
+	}
+
+	/**
+	 * Sets the soundbank the instruments are played with. Providing null goes back to
+	 * the synthesizer's default soundbank.
+	 * @param sb the soundbank, or null
+	 */
+	public synchronized void setSoundbank(Soundbank sb) {
+		soundbank = sb;
+	}
+
+	/**
+	 * Gets the format of the audio produced.
+	 * @return the audio format
+	 */
+	public AudioFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Renders a sequence to a WAV file.
+	 * @param s the sequence to render
+	 * @param fileName the name of the file to write
+	 * @throws IOException if the file cannot be written
+	 * @throws MidiUnavailableException if the software synthesizer cannot be used
+	 * @throws InvalidMidiDataException if the sequence cannot be converted to MIDI
+	 */
+	public void render(Sequence s, String fileName)
+			throws IOException, MidiUnavailableException, InvalidMidiDataException {
+		FileChannel out = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			render(s, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Renders a sequence as WAV data, written to the given channel as it is produced.
+	 * The channel is not closed.
+	 * @param s the sequence to render
+	 * @param out the channel to write to
+	 * @throws IOException if the data cannot be written
+	 * @throws MidiUnavailableException if the software synthesizer cannot be used
+	 * @throws InvalidMidiDataException if the sequence cannot be converted to MIDI
+	 */
+	public void render(Sequence s, WritableByteChannel out)
+			throws IOException, MidiUnavailableException, InvalidMidiDataException {
+		javax.sound.midi.Sequence seq = s.createMidiSequence();
+		if (seq == null) {
+			throw new InvalidMidiDataException("cannot convert sequence");
+		}
+		Synthesizer synth = MidiSystem.getSynthesizer();
+		AudioInputStream in = openStream(synth);
+		try {
+			synth.loadAllInstruments(getSoundbank(synth));
+			// the synthesizer's clock follows the audio read from it, so every event can
+			// be given to it now, to be played when the audio reaches its time
+			Receiver receiver = synth.getReceiver();
+			long length = 0;
+			javax.sound.midi.Track[] tracks = seq.getTracks();
+			for (int i = 0; i < tracks.length; i++) {
+				for (int j = 0; j < tracks[i].size(); j++) {
+					MidiEvent e = tracks[i].get(j);
+					long time = s.getMicrosecondPosition(e.getTick());
+					if (e.getMessage() instanceof ShortMessage) {
+						receiver.send(e.getMessage(), time);
+					}
+					length = Math.max(length, time);
+				}
+			}
+			long frames = (long) Math.ceil((length + tail) * (double) format.getFrameRate() / 1000000);
+			writeWav(in, frames, out);
+		} finally {
+			in.close();
+			synth.close();
+		}
+	}
+
+	/**
+	 * Renders many sequences to WAV files at once, spread over the renderer's threads,
+	 * and blocks until all are done. A sequence that cannot be rendered does not stop the
+	 * others; its error is recorded in the BatchReport, where the input of each result
+	 * is the index of the sequence.
+	 * @param sequences the sequences to render
+	 * @param fileNames the name of the file to write each sequence to
+	 * @return the report of the run, with the results in the order the sequences were given
+	 * @throws InterruptedException if interrupted while waiting, in which case sequences
+	 * not yet started are abandoned
+	 */
+	public BatchReport renderAll(List<Sequence> sequences, List<String> fileNames)
+			throws InterruptedException {
+		if (sequences.size() != fileNames.size()) {
+			throw new IllegalArgumentException("Got " + sequences.size() + " sequences but "
+					+ fileNames.size() + " file names");
+		}
+		final BatchReport.FileResult[] results = new BatchReport.FileResult[sequences.size()];
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(results.length);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < results.length; i++) {
+				final Sequence s = sequences.get(i);
+				final BatchReport.FileResult result =
+						new BatchReport.FileResult(String.valueOf(i), fileNames.get(i));
+				results[i] = result;
+				futures.add(pool.submit(new Runnable() {
+					public void run() {
+						render(s, result);
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					// errors are recorded in the results
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return new BatchReport(results, System.nanoTime() - start);
+	}
+
+	// renders a single sequence, recording the outcome
+	private void render(final Sequence s, final BatchReport.FileResult result) {
+		result.run(new BatchReport.Work() {
+			public void run() throws IOException, MidiUnavailableException, InvalidMidiDataException {
+				render(s, result.getOutput());
+			}
+		});
+	}
+
+	// the soundbank to play with, loading the default soundbank the first time it is needed
+	private synchronized Soundbank getSoundbank(Synthesizer synth) throws MidiUnavailableException {
+		if (soundbank == null) {
+			soundbank = synth.getDefaultSoundbank();
+			if (soundbank == null) {
+				throw new MidiUnavailableException("no soundbank available");
+			}
+		}
+		return soundbank;
+	}
+
+	// opens the synthesizer as a stream of audio in the renderer's format, without
+	// loading its own copy of the default soundbank
+	private AudioInputStream openStream(Synthesizer synth) throws MidiUnavailableException {
+		Method open;
+		try {
+			open = synth.getClass().getMethod("openStream", AudioFormat.class, Map.class);
+		} catch (NoSuchMethodException e) {
+			throw new MidiUnavailableException("the synthesizer cannot render offline: " + synth);
+		}
+		Map<String, Object> info = new HashMap<String, Object>();
+		info.put("load default soundbank", Boolean.FALSE);
+		try {
+			return (AudioInputStream) open.invoke(synth, format, info);
+		} catch (IllegalAccessException e) {
+			throw new MidiUnavailableException("the software synthesizer is not accessible; run java with "
+					+ "--add-exports java.desktop/com.sun.media.sound=ALL-UNNAMED");
+		} catch (InvocationTargetException e) {
+			MidiUnavailableException m = new MidiUnavailableException("cannot open synthesizer stream");
+			m.initCause(e.getCause());
+			throw m;
+		}
+	}
+
+	// writes a WAV header followed by the given number of frames from the stream
+	private void writeWav(AudioInputStream in, long frames, WritableByteChannel out) throws IOException {
+		int frameSize = format.getFrameSize();
+		long dataLength = frames * frameSize;
+		if (dataLength > 0xFFFFFFFFL - 36) {
+			throw new IOException("audio too long for a WAV file: " + dataLength + " bytes");
+		}
+		ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952); // "RIFF"
+		header.putInt((int) (36 + dataLength));
+		header.putInt(0x45564157); // "WAVE"
+		header.putInt(0x20746D66); // "fmt "
+		header.putInt(16);
+		header.putShort((short) 1); // PCM
+		header.putShort((short) format.getChannels());
+		header.putInt((int) format.getSampleRate());
+		header.putInt((int) format.getSampleRate() * frameSize);
+		header.putShort((short) frameSize);
+		header.putShort((short) format.getSampleSizeInBits());
+		header.putInt(0x61746164); // "data"
+		header.putInt((int) dataLength);
+		header.flip();
+		writeFully(header, out);
+		byte[] buffer = new byte[BUFFER_SIZE - BUFFER_SIZE % frameSize];
+		long remaining = dataLength;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n < 0) {
+				throw new EOFException("synthesizer stream ended early");
+			}
+			writeFully(ByteBuffer.wrap(buffer, 0, n), out);
+			remaining -= n;
+		}
+	}
+
+	private static void writeFully(ByteBuffer b, WritableByteChannel out) throws IOException {
+		while (b.hasRemaining()) {
+			out.write(b);
+		}
+	}
+
+}
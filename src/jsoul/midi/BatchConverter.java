@@ -0,0 +1,181 @@
+package jsoul.midi;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Converts many MIDI files at once: each file is read into a Sequence, passed through
+ * a SequenceTransform, and written to an output directory, with the files spread over
+ * a pool of worker threads. At most a fixed number of files are in progress at any
+ * time, which bounds the memory used however many files are given. A file that cannot
+ * be converted does not stop the others; its error is recorded in the BatchReport.
+ * @author Andrew Goldin
+ */
+public class BatchConverter {
+
+	private int numThreads, maxInFlight;
+
+	/**
+	 * Constructs a converter with one worker thread per available processor.
+	 */
+	public BatchConverter() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a converter with the given number of worker threads. By default, twice
+	 * as many files as threads may be in progress at once.
+	 * @param threads the number of worker threads
+	 */
+	public BatchConverter(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Need at least one thread, got " + threads);
+		}
+		numThreads = threads;
+		maxInFlight = threads * 2;
+	}
+
+	/**
+	 * Sets the greatest number of files that may be read, transformed or written at the
+	 * same time, including files waiting for a worker thread.
+	 * @param max the greatest number of files in progress
+	 */
+	public void setMaxInFlight(int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Need at least one file in flight, got " + max);
+		}
+		maxInFlight = max;
+	}
+
+	/**
+	 * Gets the greatest number of files that may be in progress at the same time.
+	 * @return the greatest number of files in progress
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Gets the number of worker threads.
+	 * @return the number of threads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Converts every .mid file in a directory, writing each to a file of the same name
+	 * in the output directory, which is created if needed.
+	 * @param inputDir the directory to read from
+	 * @param outputDir the directory to write to
+	 * @param t the transform to apply to each sequence
+	 * @return the report of the run
+	 * @throws IOException if the input directory cannot be listed or the output
+	 * directory cannot be created
+	 * @throws InterruptedException if interrupted while waiting for the files
+	 */
+	public BatchReport convertDirectory(String inputDir, String outputDir, SequenceTransform t)
+			throws IOException, InterruptedException {
+		File[] files = new File(inputDir).listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().toLowerCase().endsWith(".mid");
+			}
+		});
+		if (files == null) {
+			throw new IOException("cannot list directory " + inputDir);
+		}
+		Arrays.sort(files);
+		List<String> inputs = new ArrayList<String>(files.length);
+		for (int i = 0; i < files.length; i++) {
+			inputs.add(files[i].getPath());
+		}
+		return convert(inputs, outputDir, t);
+	}
+
+	/**
+	 * Converts the given files, writing each to a file of the same name in the output
+	 * directory, which is created if needed. Blocks until every file has been handled.
+	 * Since the output names come from the input names alone, a file with the same name
+	 * as one before it, from another directory, is not converted, and fails with an
+	 * IOException rather than overwriting the other's output.
+	 * @param inputs the paths of the files to read
+	 * @param outputDir the directory to write to
+	 * @param t the transform to apply to each sequence
+	 * @return the report of the run, with the results in the order the files were given
+	 * @throws IOException if the output directory cannot be created
+	 * @throws InterruptedException if interrupted while waiting for the files, in which
+	 * case files not yet started are abandoned
+	 */
+	public BatchReport convert(List<String> inputs, String outputDir, final SequenceTransform t)
+			throws IOException, InterruptedException {
+		File dir = new File(outputDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create directory " + outputDir);
+		}
+		final BatchReport.FileResult[] results = new BatchReport.FileResult[inputs.size()];
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		Map<String, String> outputs = new HashMap<String, String>(); // output name to input
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < results.length; i++) {
+				String input = inputs.get(i);
+				final BatchReport.FileResult result = new BatchReport.FileResult(input,
+						new File(dir, new File(input).getName()).getPath());
+				results[i] = result;
+				String name = new File(input).getName().toLowerCase(); // file systems may ignore case
+				String other = outputs.get(name);
+				if (other != null) {
+					result.finish(new IOException("same output name as " + other), 0);
+					continue;
+				}
+				outputs.put(name, input);
+				inFlight.acquire(); // wait here while too many files are in progress
+				try {
+					pool.execute(new Runnable() {
+						public void run() {
+							try {
+								convert(result, t);
+							} finally {
+								inFlight.release();
+							}
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+			inFlight.acquire(maxInFlight); // wait for the last files to finish
+			inFlight.release(maxInFlight);
+		} finally {
+			pool.shutdownNow();
+		}
+		return new BatchReport(results, System.nanoTime() - start);
+	}
+
+	// reads, transforms and writes a single file, recording the outcome
+	private static void convert(final BatchReport.FileResult result, final SequenceTransform t) {
+		result.run(new BatchReport.Work() {
+			public void run() throws IOException, InvalidMidiDataException {
+				Sequence s = new MidiFileReader(result.getInput()).read();
+				s = t.transform(s);
+				if (s == null) {
+					throw new IllegalStateException("transform returned no sequence");
+				}
+				write(s, result.getOutput());
+			}
+		});
+	}
+
+	private static void write(Sequence s, String fileName) throws IOException, InvalidMidiDataException {
+		OutputStream out = new FileOutputStream(fileName);
+		try {
+			new MidiFileWriter(out).write(s);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package jsoul.midi;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The outcome of a BatchConverter run: a result for each file, in the order the files
+ * were given, along with the overall time taken and throughput.
+ * @author Andrew Goldin
+ */
+public class BatchReport {
+
+	private FileResult[] results;
+	private long elapsedNanos;
+
+	BatchReport(FileResult[] results, long elapsedNanos) {
+		this.results = results;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * Returns the result for each file, in the order the files were given.
+	 * @return the results
+	 */
+	public List<FileResult> getResults() {
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	/**
+	 * Returns the results of the files that could not be converted.
+	 * @return the failed results
+	 */
+	public List<FileResult> getFailures() {
+		List<FileResult> failures = new ArrayList<FileResult>();
+		for (int i = 0; i < results.length; i++) {
+			if (!results[i].isSuccess()) failures.add(results[i]);
+		}
+		return failures;
+	}
+
+	/**
+	 * Returns the number of files that were converted successfully.
+	 * @return the number of successes
+	 */
+	public int getNumSucceeded() {
+		return results.length - getFailures().size();
+	}
+
+	/**
+	 * Returns the wall clock time taken by the whole run.
+	 * @return the elapsed time in milliseconds
+	 */
+	public double getElapsedMillis() {
+		return elapsedNanos / 1e6;
+	}
+
+	/**
+	 * Returns the number of files processed per second, counting failures.
+	 * @return the throughput in files per second
+	 */
+	public double getFilesPerSecond() {
+		return elapsedNanos > 0 ? results.length / (elapsedNanos / 1e9) : 0;
+	}
+
+	/**
+	 * Returns the mean time taken to process a single file.
+	 * @return the mean latency in milliseconds
+	 */
+	public double getMeanLatencyMillis() {
+		if (results.length == 0) return 0;
+		long total = 0;
+		for (int i = 0; i < results.length; i++) total += results[i].nanos;
+		return total / 1e6 / results.length;
+	}
+
+	/**
+	 * Returns the time within which the given fraction of the files were processed,
+	 * e.g. 0.5 for the median or 0.99 for the 99th percentile.
+	 * @param fraction the fraction of files (0 to 1)
+	 * @return the latency in milliseconds
+	 */
+	public double getLatencyPercentileMillis(double fraction) {
+		if (results.length == 0) return 0;
+		long[] nanos = new long[results.length];
+		for (int i = 0; i < results.length; i++) nanos[i] = results[i].nanos;
+		Arrays.sort(nanos);
+		int index = (int) Math.ceil(fraction * nanos.length) - 1;
+		return nanos[Math.max(0, Math.min(index, nanos.length - 1))] / 1e6;
+	}
+
+	/**
+	 * Returns a summary of the run, giving the number of files, failures, throughput
+	 * and latencies.
+	 * @return the summary
+	 */
+	public String toString() {
+		return String.format("BATCH: Files = %d, Failed = %d, Elapsed = %.1f ms, "
+				+ "Throughput = %.1f files/s, Latency mean = %.2f ms, p50 = %.2f ms, p99 = %.2f ms",
+				results.length, results.length - getNumSucceeded(), getElapsedMillis(),
+				getFilesPerSecond(), getMeanLatencyMillis(), getLatencyPercentileMillis(0.5),
+				getLatencyPercentileMillis(0.99));
+	}
+
+	/**
+	 * The result of converting a single file.
+	 */
+	public static class FileResult {
+
+		private String input, output;
+		private Exception error;
+		private boolean finished;
+		long nanos;
+
+		FileResult(String input, String output) {
+			this.input = input;
+			this.output = output;
+		}
+
+		void finish(Exception e, long nanos) {
+			error = e;
+			this.nanos = nanos;
+			finished = true;
+		}
+
+		// does the work for this file, recording how long it took and what stopped it. An
+		// Error is recorded as well, wrapped in an ExecutionException, and then thrown on.
+		void run(Work w) {
+			long start = System.nanoTime();
+			try {
+				w.run();
+				finish(null, System.nanoTime() - start);
+			} catch (Exception e) {
+				finish(e, System.nanoTime() - start);
+			} catch (Error e) {
+				finish(new ExecutionException(e), System.nanoTime() - start);
+				throw e;
+			}
+		}
+
+		/**
+		 * Returns the path of the file that was read.
+		 * @return the input path
+		 */
+		public String getInput() {
+			return input;
+		}
+
+		/**
+		 * Returns the path of the file that was written, or would have been.
+		 * @return the output path
+		 */
+		public String getOutput() {
+			return output;
+		}
+
+		/**
+		 * Returns whether the file was converted and written. A file that was never
+		 * finished, such as one abandoned when the run was interrupted, has not succeeded.
+		 * @return true if successful
+		 */
+		public boolean isSuccess() {
+			return finished && error == null;
+		}
+
+		/**
+		 * Returns the exception that stopped the file from being converted. An Error, such
+		 * as running out of memory, is given wrapped in an ExecutionException.
+		 * @return the exception, or null if successful or never finished
+		 */
+		public Exception getError() {
+			return error;
+		}
+
+		/**
+		 * Returns the time taken to read, transform and write the file.
+		 * @return the latency in milliseconds
+		 */
+		public double getLatencyMillis() {
+			return nanos / 1e6;
+		}
+
+		/**
+		 * Returns a String representation of the result.
+		 * @return a String representation
+		 */
+		public String toString() {
+			return input + " -> " + output + (isSuccess() ? "" : " FAILED: " + (finished ? error : "not finished"))
+					+ String.format(" (%.2f ms)", getLatencyMillis());
+		}
+
+	}
+
+	// the work done for a single file
+	interface Work {
+		void run() throws Exception;
+	}
+
+}
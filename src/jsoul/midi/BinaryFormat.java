@@ -0,0 +1,346 @@
+package jsoul.midi;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes Sequences in a compact binary format and reads them back, keeping their
+ * structure exactly: every Note and Chord, the kind of each track, the instruments,
+ * the resolution and the tempo map. Unlike a MIDI file, nothing has to be worked out
+ * again from note events when reading, so loading is a straight pass over the bytes.
+ * <p>
+ * The data starts with a header of the magic number "JSOB", a version byte and the
+ * length of the rest of the data. Numbers are stored as variable length integers of 7
+ * bits per byte, low bits first, so small values take a single byte. The tempo map and
+ * the elements of each track are stored as columns, each holding one property of every
+ * entry, which groups similar values together. A track holds the size of each element
+ * (0 for a Note, or one more than the number of pitches of a Chord, so that a Chord
+ * without pitches is kept apart from a Note), then the durations, then the velocities,
+ * then the pitches.
+ * @author Andrew Goldin
+ */
+public final class BinaryFormat {
+
+	/**
+	 * The version of the format written.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int MAGIC = 0x4A534F42; // "JSOB"
+	private static final int TRACK = 0, PERCUSSION_TRACK = 1, PACKED_TRACK = 2;
+
+	private BinaryFormat() {
+	}
+
+	/**
+	 * Returns a sequence in the binary format.
+	 * @param s the sequence
+	 * @return the bytes of the sequence
+	 */
+	public static byte[] toBytes(Sequence s) {
+		Encoder e = new Encoder();
+		e.encode(s);
+		return e.toBytes();
+	}
+
+	/**
+	 * Writes a sequence in the binary format.
+	 * @param s the sequence to write
+	 * @param out where to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public static void write(Sequence s, DataOutput out) throws IOException {
+		out.write(toBytes(s));
+	}
+
+	/**
+	 * Writes a sequence in the binary format into a buffer, at its position.
+	 * @param s the sequence to write
+	 * @param out the buffer to write into
+	 * @throws java.nio.BufferOverflowException if the buffer does not have enough room,
+	 * in which case nothing is written
+	 */
+	public static void write(Sequence s, ByteBuffer out) {
+		out.put(toBytes(s));
+	}
+
+	/**
+	 * Reads a sequence in the binary format.
+	 * @param in where to read from
+	 * @return the sequence
+	 * @throws IOException if the data cannot be read, or is not in the format
+	 */
+	public static Sequence read(DataInput in) throws IOException {
+		int length = readHeader(in.readInt(), in.readUnsignedByte(), in.readInt());
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return decode(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Reads a sequence in the binary format from a buffer, starting at its position. The
+	 * position is moved past the sequence.
+	 * @param in the buffer to read from
+	 * @return the sequence
+	 * @throws IOException if the data is not in the format
+	 */
+	public static Sequence read(ByteBuffer in) throws IOException {
+		try {
+			int length = readHeader(in.getInt(), in.get() & 0xFF, in.getInt());
+			if (length > in.remaining()) {
+				throw new EOFException("sequence data is cut short");
+			}
+			ByteBuffer data = in.slice();
+			data.limit(length);
+			in.position(in.position() + length);
+			return decode(data);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("sequence data is cut short");
+		}
+	}
+
+	/**
+	 * Reads a sequence in the binary format from an array.
+	 * @param data the bytes of the sequence
+	 * @return the sequence
+	 * @throws IOException if the data is not in the format
+	 */
+	public static Sequence fromBytes(byte[] data) throws IOException {
+		return read(ByteBuffer.wrap(data));
+	}
+
+	// checks the header, returning the length of the data that follows it
+	private static int readHeader(int magic, int version, int length) throws IOException {
+		if (magic != MAGIC) {
+			throw new IOException("not a jsoul binary sequence");
+		}
+		if (version != VERSION) {
+			throw new IOException("unsupported version " + version);
+		}
+		if (length < 0) {
+			throw new IOException("corrupt length " + length);
+		}
+		return length;
+	}
+
+	private static Sequence decode(ByteBuffer in) throws IOException {
+		try {
+			Sequence s = new Sequence();
+			s.setResolution(readInt(in));
+			TempoMap map = new TempoMap();
+			int numTempos = count(in);
+			long[] ticks = readTicks(in, numTempos);
+			for (int i = 0; i < numTempos; i++) {
+				map.setTempo(ticks[i], readInt(in));
+			}
+			int numSignatures = count(in);
+			ticks = readTicks(in, numSignatures);
+			int[] numerators = new int[numSignatures];
+			for (int i = 0; i < numSignatures; i++) {
+				numerators[i] = readInt(in);
+			}
+			for (int i = 0; i < numSignatures; i++) {
+				map.setTimeSignature(ticks[i], numerators[i], 1 << readInt(in));
+			}
+			s.setTempoMap(map);
+			int numTracks = count(in);
+			for (int i = 0; i < numTracks; i++) {
+				s.add(readTrack(in));
+			}
+			if (in.hasRemaining()) {
+				throw new IOException("corrupt data: " + in.remaining() + " bytes left over");
+			}
+			return s;
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("sequence data is cut short");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("corrupt data: " + e.getMessage());
+		}
+	}
+
+	private static Track readTrack(ByteBuffer in) throws IOException {
+		int kind = in.get();
+		Track t = kind == TRACK ? new Track() : kind == PERCUSSION_TRACK ? new PercussionTrack()
+				: kind == PACKED_TRACK ? new PackedTrack() : null;
+		if (t == null) {
+			throw new IOException("corrupt track kind " + kind);
+		}
+		t.setInstrument(readInt(in));
+		int n = count(in);
+		int[] sizes = new int[n];
+		int numPitches = 0;
+		for (int i = 0; i < n; i++) {
+			sizes[i] = count(in);
+			numPitches += sizes[i] == 0 ? 1 : sizes[i] - 1;
+			if (numPitches < 0 || numPitches > in.remaining()) { // each pitch takes a byte or more
+				throw new EOFException("sequence data is cut short");
+			}
+		}
+		int[] durations = new int[n];
+		for (int i = 0; i < n; i++) {
+			durations[i] = readInt(in);
+		}
+		int[] velocities = new int[n];
+		for (int i = 0; i < n; i++) {
+			velocities[i] = readInt(in);
+		}
+		for (int i = 0; i < n; i++) {
+			if (sizes[i] == 0) {
+				t.add(new Note(readInt(in), velocities[i], durations[i]));
+			}
+			else {
+				int[] pitches = new int[sizes[i] - 1];
+				for (int j = 0; j < pitches.length; j++) {
+					pitches[j] = readInt(in);
+				}
+				t.add(new Chord(pitches, velocities[i], durations[i]));
+			}
+		}
+		return t;
+	}
+
+	private static long[] readTicks(ByteBuffer in, int n) throws IOException {
+		long[] ticks = new long[n];
+		long tick = 0;
+		for (int i = 0; i < n; i++) {
+			tick += readLong(in);
+			ticks[i] = tick;
+		}
+		return ticks;
+	}
+
+	// reads a number of entries, which cannot be more than the bytes left
+	private static int count(ByteBuffer in) throws IOException {
+		long n = readLong(in);
+		if (n < 0 || n > in.remaining()) {
+			throw new IOException("corrupt count " + n);
+		}
+		return (int) n;
+	}
+
+	private static int readInt(ByteBuffer in) throws IOException {
+		long v = readLong(in);
+		if (v != (int) v) {
+			throw new IOException("corrupt value " + v);
+		}
+		return (int) v;
+	}
+
+	// reads a variable length integer, undoing the zigzag encoding of its sign
+	private static long readLong(ByteBuffer in) throws IOException {
+		long raw = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift > 63) {
+				throw new IOException("corrupt variable length number");
+			}
+			b = in.get();
+			raw |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return (raw >>> 1) ^ -(raw & 1);
+	}
+
+	// builds the encoded data in a growing array, leaving room for the header
+	private static class Encoder {
+
+		private byte[] data = new byte[256];
+		private int size = 9;
+
+		void encode(Sequence s) {
+			writeLong(s.getResolution());
+			TempoMap map = s.getTempoMap();
+			int numTempos = map.getNumTempoChanges();
+			writeLong(numTempos);
+			long last = 0;
+			for (int i = 0; i < numTempos; i++) {
+				writeLong(map.getTempoTick(i) - last);
+				last = map.getTempoTick(i);
+			}
+			for (int i = 0; i < numTempos; i++) {
+				writeLong(map.getMicrosecondsPerBeat(i));
+			}
+			int numSignatures = map.getNumTimeSignatures();
+			writeLong(numSignatures);
+			last = 0;
+			for (int i = 0; i < numSignatures; i++) {
+				writeLong(map.getTimeSignatureTick(i) - last);
+				last = map.getTimeSignatureTick(i);
+			}
+			for (int i = 0; i < numSignatures; i++) {
+				writeLong(map.getNumerator(i));
+			}
+			for (int i = 0; i < numSignatures; i++) {
+				writeLong(Integer.numberOfTrailingZeros(map.getDenominator(i)));
+			}
+			writeLong(s.getNumTracks());
+			for (int i = 0; i < s.getNumTracks(); i++) {
+				writeTrack(s.getTrack(i));
+			}
+		}
+
+		private void writeTrack(Track t) {
+			ensure(1);
+			data[size++] = (byte) (t instanceof PercussionTrack ? PERCUSSION_TRACK
+					: t instanceof PackedTrack ? PACKED_TRACK : TRACK);
+			writeLong(t.getInstrument().getInstrumentNumber());
+			int n = t.getNumElements();
+			writeLong(n);
+			for (int i = 0; i < n; i++) {
+				Playable p = t.getElement(i);
+				writeLong(p instanceof Chord ? ((Chord) p).getSize() + 1 : 0);
+			}
+			for (int i = 0; i < n; i++) {
+				Playable p = t.getElement(i);
+				writeLong(p instanceof Chord ? ((Chord) p).getDuration() : ((Note) p).getDuration());
+			}
+			for (int i = 0; i < n; i++) {
+				Playable p = t.getElement(i);
+				writeLong(p instanceof Chord ? ((Chord) p).getVelocity() : ((Note) p).getVelocity());
+			}
+			for (int i = 0; i < n; i++) {
+				Playable p = t.getElement(i);
+				if (p instanceof Chord) {
+					Chord c = (Chord) p;
+					for (int j = 0; j < c.getSize(); j++) {
+						writeLong(c.getPitch(j));
+					}
+				}
+				else {
+					writeLong(((Note) p).getPitch());
+				}
+			}
+		}
+
+		// writes a variable length integer, zigzag encoding its sign so that small
+		// negative numbers stay short
+		private void writeLong(long v) {
+			ensure(10);
+			long raw = (v << 1) ^ (v >> 63);
+			while ((raw & ~0x7FL) != 0) {
+				data[size++] = (byte) (raw | 0x80);
+				raw >>>= 7;
+			}
+			data[size++] = (byte) raw;
+		}
+
+		private void ensure(int n) {
+			if (size + n > data.length) {
+				data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+			}
+		}
+
+		// fills in the header and returns the finished data
+		byte[] toBytes() {
+			ByteBuffer header = ByteBuffer.wrap(data, 0, 9);
+			header.putInt(MAGIC);
+			header.put((byte) VERSION);
+			header.putInt(size - 9);
+			return Arrays.copyOf(data, size);
+		}
+
+	}
+
+}
@@ -0,0 +1,97 @@
+package jsoul.midi;
+
+/**
+ * Assigns a MIDI channel to each track of a Sequence. PercussionTracks play on channel
+ * 10 (numbered 9 from 0), which is reserved for them, leaving 15 channels for the other
+ * tracks. While there are enough, each track gets its own channel, in order, skipping
+ * channel 10. A sequence with more tracks than that shares channels between tracks
+ * with the same instrument, so that any number of tracks can be played as long as they
+ * use at most 15 different instruments. The instruments after the 15th share channels
+ * with the first ones, in turn. A track sends a program change when its instrument
+ * differs from the last one sent on its channel, so tracks sharing a channel with the
+ * same instrument send it once, while on a channel shared by different instruments,
+ * every track plays with the instrument of the last of them.
+ * @author Andrew Goldin
+ */
+final class ChannelMap {
+
+	/**
+	 * The channel reserved for percussion, counting from 0.
+	 */
+	static final int PERCUSSION_CHANNEL = 9;
+
+	private static final int NUM_MELODIC = 15;
+
+	private int[] channels;
+	private boolean[] programChanges;
+
+	private ChannelMap(int numTracks) {
+		channels = new int[numTracks];
+		programChanges = new boolean[numTracks];
+	}
+
+	/**
+	 * Assigns channels to the tracks of the sequence.
+	 * @param s the sequence
+	 * @return the channel assignment
+	 */
+	static ChannelMap allocate(Sequence s) {
+		int n = s.getNumTracks();
+		ChannelMap map = new ChannelMap(n);
+		int numMelodic = 0;
+		for (int i = 0; i < n; i++) {
+			if (!(s.getTrack(i) instanceof PercussionTrack)) numMelodic++;
+		}
+		// the channel given to each instrument, when tracks have to share
+		int[] byInstrument = new int[128];
+		java.util.Arrays.fill(byInstrument, -1);
+		int[] programs = new int[16]; // the last instrument sent on each channel
+		java.util.Arrays.fill(programs, -1);
+		int next = 0;
+		for (int i = 0; i < n; i++) {
+			Track t = s.getTrack(i);
+			if (t instanceof PercussionTrack) {
+				map.channels[i] = PERCUSSION_CHANNEL;
+				continue; // the drum kit needs no program change
+			}
+			int channel, instrument = t.getInstrument().getInstrumentNumber() & 0x7F;
+			if (numMelodic <= NUM_MELODIC) {
+				channel = melodicChannel(next++);
+			}
+			else {
+				if (byInstrument[instrument] < 0) {
+					byInstrument[instrument] = melodicChannel(next++ % NUM_MELODIC);
+				}
+				channel = byInstrument[instrument];
+			}
+			map.channels[i] = channel;
+			map.programChanges[i] = programs[channel] != instrument;
+			programs[channel] = instrument;
+		}
+		return map;
+	}
+
+	// the channel of the nth melodic track, skipping the percussion channel
+	private static int melodicChannel(int n) {
+		return n < PERCUSSION_CHANNEL ? n : n + 1;
+	}
+
+	/**
+	 * Returns the channel a track plays on.
+	 * @param trackNum the index of the track
+	 * @return the channel (0 to 15)
+	 */
+	int getChannel(int trackNum) {
+		return channels[trackNum];
+	}
+
+	/**
+	 * Returns whether a track sends the program change for its channel.
+	 * @param trackNum the index of the track
+	 * @return true if the track sends a program change
+	 */
+	boolean sendsProgramChange(int trackNum) {
+		return programChanges[trackNum];
+	}
+
+}
@@ -35,22 +35,39 @@ public class Chord implements Playable, Comparable<Chord> {
 	}
 	
 	/**
-	 * Generates a new chord given a list of pitch strings separated by spaces.
+	 * Generates a new chord given a list of pitch strings separated by spaces, such as
+	 * "C4 E4 G4". See Note.parsePitch for the format of each pitch.
 	 * @param pitchList the list of pitches
 	 * @param v the velocity (0 to 127)
 	 * @param d the duration of the chord in midi ticks, where 1 tick is assumed to be one 16th of a beat
 	 */
 	public Chord(String pitchList, int v, int d) {
-		String[] p = pitchList.split(" ");
-		pitches = new int[p.length];
-		for (int i = 0; i < pitches.length; i++) {
-			pitches[i] = Note.stringToPitch(p[i]);
-		}
+		pitches = parsePitches(pitchList);
 		Arrays.sort(pitches);
 		velocity = v;
 		duration = d;
 	}
 	
+	// parses whitespace separated pitches in place, counting them first to size the array
+	private static int[] parsePitches(CharSequence s) {
+		int count = 0;
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isWhitespace(s.charAt(i))
+					&& (i == 0 || Character.isWhitespace(s.charAt(i - 1)))) {
+				count++;
+			}
+		}
+		int[] p = new int[count];
+		int n = 0, i = 0;
+		while (n < count) {
+			while (Character.isWhitespace(s.charAt(i))) i++;
+			int start = i;
+			while (i < s.length() && !Character.isWhitespace(s.charAt(i))) i++;
+			p[n++] = Note.parsePitch(s, start, i);
+		}
+		return p;
+	}
+	
 	/**
 	 * Returns the number of notes in the chord.
 	 * @return the number of notes in the chord
@@ -76,6 +93,16 @@ public class Chord implements Playable, Comparable<Chord> {
 		return pitches;
 	}
 	
+	/**
+	 * Returns the pitch at a specific position in the chord, without creating any
+	 * objects. Use together with getSize() to iterate over the pitches.
+	 * @param i the index of the pitch (0 is lowest pitch)
+	 * @return the pitch value at the specified position
+	 */
+	public int getPitch(int i) {
+		return pitches[i];
+	}
+	
 	/**
 	 * Returns the highest pitch in the chord.
 	 * @return the highest pitch value
@@ -143,20 +170,21 @@ public class Chord implements Playable, Comparable<Chord> {
 	 * @return the list of Note objects
 	 */
 	public Note[] getNotes() {
-		Note[] notes = new Note[pitches.length];
+		Note[] notes = new Note[getSize()];
 		for (int i = 0; i < notes.length; i++) {
-			notes[i] = new Note(pitches[i], velocity, duration);
+			notes[i] = getNote(i);
 		}
 		return notes;
 	}
 	
 	/**
-	 * Returns a note at a specific position in the chord.
+	 * Returns a note at a specific position in the chord. Only that one Note is created;
+	 * use getPitch(int) to avoid creating it at all.
 	 * @param i the index of the note (0 is lowest note)
 	 * @return the Note object at the specified position
 	 */
 	public Note getNote(int i) {
-		return getNotes()[i];
+		return new Note(getPitch(i), getVelocity(), getDuration());
 	}
 	
 	/**
@@ -165,12 +193,12 @@ public class Chord implements Playable, Comparable<Chord> {
 	 * @return the chord's String representation
 	 */
 	public String toString() {
-		String s = "CHORD: Pitches =";
-		for (int i = 0; i < pitches.length; i++) {
-			s += " " + Note.pitchToString(pitches[i]);
+		StringBuilder sb = new StringBuilder("CHORD: Pitches =");
+		for (int i = 0; i < getSize(); i++) {
+			sb.append(' ').append(Note.pitchToString(getPitch(i)));
 		}
-		s += ", Velocity = " + velocity + ", Duration = " + duration;
-		return s;
+		sb.append(", Velocity = ").append(getVelocity()).append(", Duration = ").append(getDuration());
+		return sb.toString();
 	}
 	
 	/**
@@ -0,0 +1,20 @@
+package jsoul.midi;
+
+/**
+ * Receives the Notes and Chords of a MIDI file one at a time as they are decoded,
+ * so that a file can be processed without building a Sequence in memory.
+ * Returning false from visit stops reading.
+ * @author Andrew Goldin
+ */
+public interface ElementVisitor {
+
+	/**
+	 * Called for each Note or Chord read from the file, in order within each track.
+	 * @param trackNum the index of the track in the file
+	 * @param tick the time the element starts at, in midi ticks from the start of the track
+	 * @param p the Note or Chord
+	 * @return true to continue reading, or false to stop
+	 */
+	public boolean visit(int trackNum, long tick, Playable p);
+
+}
@@ -0,0 +1,140 @@
+package jsoul.midi;
+import java.util.Arrays;
+
+/**
+ * A Chord whose pitches, velocity and duration can never change, so it can be shared
+ * freely between tracks and threads. The pitches are copied on construction and
+ * getPitches returns a copy. The setters and transpose throw an
+ * UnsupportedOperationException; use transposed to get a transposed copy.
+ * @author Andrew Goldin
+ */
+public class ImmutableChord extends Chord {
+
+	/**
+	 * Constructs an immutable chord from a copy of the given pitches.
+	 * @param p the list of pitch values (0 to 127)
+	 * @param v the velocity (0 to 127)
+	 * @param d the duration of the chord in midi ticks, where 1 tick is assumed to be one 16th of a beat
+	 */
+	public ImmutableChord(int[] p, int v, int d) {
+		super(p.clone(), v, d);
+	}
+
+	/**
+	 * Returns an immutable chord with the same values as the given chord. An
+	 * ImmutableChord is returned as it is, without being copied.
+	 * @param c the chord
+	 * @return an immutable chord with the same values
+	 */
+	public static ImmutableChord of(Chord c) {
+		if (c instanceof ImmutableChord) return (ImmutableChord) c;
+		int[] p = new int[c.getSize()];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = c.getPitch(i);
+		}
+		return new ImmutableChord(p, c.getVelocity(), c.getDuration());
+	}
+
+	/**
+	 * Returns a chord transposed by the given number of half steps. If any pitch would
+	 * leave the 0-127 range, or steps is 0, this chord is returned.
+	 * @param steps the number of steps (positive or negative) to transpose
+	 * @return the transposed chord
+	 */
+	public ImmutableChord transposed(int steps) {
+		if (steps == 0 || getSize() == 0 || getLowestPitch() + steps < 0
+				|| getHighestPitch() + steps > 127) {
+			return this;
+		}
+		int[] p = new int[getSize()];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = getPitch(i) + steps;
+		}
+		return new ImmutableChord(p, getVelocity(), getDuration());
+	}
+
+	/**
+	 * Returns a mutable copy of the chord.
+	 * @return a new Chord with the same values
+	 */
+	public Chord toChord() {
+		return new Chord(getPitches(), getVelocity(), getDuration());
+	}
+
+	/**
+	 * Returns a note at a specific position in the chord. Since the chord cannot change,
+	 * the note is a shared one from Note.of.
+	 * @param i the index of the note (0 is lowest note)
+	 * @return the Note at the specified position
+	 */
+	public Note getNote(int i) {
+		return Note.of(getPitch(i), getVelocity(), getDuration());
+	}
+
+	/**
+	 * Returns a copy of the pitches in the chord, sorted from lowest to highest pitch.
+	 * @return the pitch values of the chord
+	 */
+	public int[] getPitches() {
+		return super.getPitches().clone();
+	}
+
+	/**
+	 * Not supported, since the chord cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setPitches(int[] p) {
+		throw new UnsupportedOperationException("ImmutableChord cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the chord cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setVelocity(int v) {
+		throw new UnsupportedOperationException("ImmutableChord cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the chord cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setDuration(int d) {
+		throw new UnsupportedOperationException("ImmutableChord cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the chord cannot change; use transposed instead.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void transpose(int steps) {
+		throw new UnsupportedOperationException("ImmutableChord cannot be changed, use transposed");
+	}
+
+	/**
+	 * Returns whether the other object is an ImmutableChord with the same pitches,
+	 * velocity and duration.
+	 * @param o the object to compare to
+	 * @return true if the chords are equal
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof ImmutableChord)) return false;
+		ImmutableChord c = (ImmutableChord) o;
+		return c.getVelocity() == getVelocity() && c.getDuration() == getDuration()
+				&& Arrays.equals(c.pitches(), pitches());
+	}
+
+	/**
+	 * Returns a hash code computed from the pitches, velocity and duration.
+	 * @return the hash code
+	 */
+	public int hashCode() {
+		return (Arrays.hashCode(pitches()) * 31 + getVelocity()) * 31 + getDuration();
+	}
+
+	// the pitch array itself, without copying it
+	private int[] pitches() {
+		return super.getPitches();
+	}
+
+}
@@ -0,0 +1,116 @@
+package jsoul.midi;
+
+/**
+ * A Note whose pitch, velocity and duration can never change, so it can be shared
+ * freely between tracks and threads. The setters and transpose throw an
+ * UnsupportedOperationException; use transposed to get a transposed copy. An
+ * ImmutableNote can be added to a Track like any other Note, and transposing the
+ * Track replaces it with a transposed copy.
+ * @author Andrew Goldin
+ */
+public class ImmutableNote extends Note {
+
+	/**
+	 * Constructs an immutable note with the given pitch, velocity, and duration.
+	 * @param p the pitch (0 to 127)
+	 * @param v the velocity (0 to 127)
+	 * @param d the duration of the note in midi ticks, where 1 tick is assumed to be one 16th of a beat
+	 */
+	public ImmutableNote(int p, int v, int d) {
+		super(p, v, d);
+	}
+
+	/**
+	 * Returns an immutable note with the same values as the given note. An ImmutableNote
+	 * is returned as it is, without being copied.
+	 * @param n the note
+	 * @return an immutable note with the same values
+	 */
+	public static ImmutableNote of(Note n) {
+		if (n instanceof ImmutableNote) return (ImmutableNote) n;
+		return new ImmutableNote(n.getPitch(), n.getVelocity(), n.getDuration());
+	}
+
+	/**
+	 * Returns a note transposed by the given number of half steps, taken from the
+	 * NotePool. If the pitch would leave the 0-127 range, or steps is 0, this note is
+	 * returned.
+	 * @param steps the number of steps (positive or negative) to transpose
+	 * @return the transposed note
+	 */
+	public ImmutableNote transposed(int steps) {
+		int p = getPitch() + steps;
+		if (steps == 0 || p < 0 || p > 127) return this;
+		return Note.of(p, getVelocity(), getDuration());
+	}
+
+	/**
+	 * Returns a mutable copy of the note.
+	 * @return a new Note with the same values
+	 */
+	public Note toNote() {
+		return new Note(getPitch(), getVelocity(), getDuration());
+	}
+
+	/**
+	 * Not supported, since the note cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setNote(int p, int v, int d) {
+		throw new UnsupportedOperationException("ImmutableNote cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the note cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setPitch(int p) {
+		throw new UnsupportedOperationException("ImmutableNote cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the note cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setVelocity(int v) {
+		throw new UnsupportedOperationException("ImmutableNote cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the note cannot change.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void setDuration(int d) {
+		throw new UnsupportedOperationException("ImmutableNote cannot be changed");
+	}
+
+	/**
+	 * Not supported, since the note cannot change; use transposed instead.
+	 * @throws UnsupportedOperationException always
+	 */
+	public void transpose(int steps) {
+		throw new UnsupportedOperationException("ImmutableNote cannot be changed, use transposed");
+	}
+
+	/**
+	 * Returns whether the other object is an ImmutableNote with the same pitch,
+	 * velocity and duration.
+	 * @param o the object to compare to
+	 * @return true if the notes are equal
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof ImmutableNote)) return false;
+		ImmutableNote n = (ImmutableNote) o;
+		return n.getPitch() == getPitch() && n.getVelocity() == getVelocity()
+				&& n.getDuration() == getDuration();
+	}
+
+	/**
+	 * Returns a hash code computed from the pitch, velocity and duration.
+	 * @return the hash code
+	 */
+	public int hashCode() {
+		return (getPitch() * 31 + getVelocity()) * 31 + getDuration();
+	}
+
+}
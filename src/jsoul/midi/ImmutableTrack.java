@@ -0,0 +1,208 @@
+package jsoul.midi;
+
+/**
+ * A track whose elements and instrument can never change, so it can be handed to
+ * other threads without copying. Every operation that would modify a Track instead
+ * returns a new ImmutableTrack, which shares its storage with the original apart from
+ * what was changed: replacing or appending one element of a million-element track
+ * copies a few small arrays, and transposing part of a track copies only that part.
+ * <p>
+ * The elements are ImmutableNotes and ImmutableChords. Converting to a Track shares
+ * them rather than copying them, since they cannot change.
+ * @author Andrew Goldin
+ */
+public class ImmutableTrack {
+
+	private static final ImmutableTrack EMPTY =
+			new ImmutableTrack(PersistentVector.<Playable>empty(), Instrument.PIANO);
+
+	private final PersistentVector<Playable> elements;
+	private final int instrument;
+
+	private ImmutableTrack(PersistentVector<Playable> elements, int instrument) {
+		this.elements = elements;
+		this.instrument = instrument;
+	}
+
+	/**
+	 * Returns an empty piano track.
+	 * @return the empty track
+	 */
+	public static ImmutableTrack empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Returns an immutable track with the given elements, which can be Notes, Chords,
+	 * or Tracks, in the order provided. Notes and Chords are converted to immutable
+	 * ones, and Sequences are ignored.
+	 * @param p the list of Playables
+	 * @return the immutable track, with a piano instrument
+	 */
+	public static ImmutableTrack of(Playable... p) {
+		Track t = new Track(p);
+		return of(t);
+	}
+
+	/**
+	 * Returns an immutable track with the same elements and instrument as the given
+	 * track. The track is read once and its storage built in a single pass. Elements
+	 * that are already immutable are shared rather than copied.
+	 * @param t the track
+	 * @return the immutable track
+	 */
+	public static ImmutableTrack of(Track t) {
+		int n = t.getNumElements();
+		Object[] items = new Object[n];
+		for (int i = 0; i < n; i++) {
+			items[i] = immutable(t.getElement(i));
+		}
+		return new ImmutableTrack(PersistentVector.<Playable>of(items, n),
+				t.getInstrument().getInstrumentNumber());
+	}
+
+	// an immutable copy of a Note or Chord, or the element itself if already immutable
+	private static Playable immutable(Playable p) {
+		if (p instanceof Note) return ImmutableNote.of((Note) p);
+		if (p instanceof Chord) return ImmutableChord.of((Chord) p);
+		throw new IllegalArgumentException("Only Notes and Chords can be track elements");
+	}
+
+	/**
+	 * Gets the number of elements (notes and chords) in the track.
+	 * @return the number of notes and chords
+	 */
+	public int getNumElements() {
+		return elements.size();
+	}
+
+	/**
+	 * Gets the element at the given position in the track, which is an ImmutableNote
+	 * or an ImmutableChord.
+	 * @param n the position of the element
+	 * @return the element at position n
+	 */
+	public Playable getElement(int n) {
+		return elements.get(n);
+	}
+
+	/**
+	 * Gets the MIDI value (0-127) of the track's instrument.
+	 * @return the instrument number
+	 */
+	public int getInstrumentNumber() {
+		return instrument;
+	}
+
+	/**
+	 * Returns a track with a different instrument and the same elements.
+	 * @param instNum the instrument number (0-127)
+	 * @return the new track
+	 */
+	public ImmutableTrack withInstrument(int instNum) {
+		return new ImmutableTrack(elements, instNum);
+	}
+
+	/**
+	 * Returns a track with the element at the given position replaced by an immutable
+	 * copy of the given Note or Chord.
+	 * @param index the position of the element to replace
+	 * @param p the new Note or Chord
+	 * @return the new track
+	 */
+	public ImmutableTrack set(int index, Playable p) {
+		return new ImmutableTrack(elements.set(index, immutable(p)), instrument);
+	}
+
+	/**
+	 * Returns a track with an immutable copy of the given Note or Chord added to the end,
+	 * or with the elements of the given Track added to the end.
+	 * @param p the Note, Chord, or Track to add
+	 * @return the new track
+	 */
+	public ImmutableTrack append(Playable p) {
+		PersistentVector<Playable> e = elements;
+		if (p instanceof Track) {
+			Track t = (Track) p;
+			for (int i = 0; i < t.getNumElements(); i++) {
+				e = e.append(immutable(t.getElement(i)));
+			}
+		}
+		else {
+			e = e.append(immutable(p));
+		}
+		return new ImmutableTrack(e, instrument);
+	}
+
+	/**
+	 * Returns a track with every note and chord transposed. As with Notes and Chords, an
+	 * element which would leave the 0-127 range is not affected.
+	 * @param steps the number of steps (positive or negative) to transpose
+	 * @return the new track
+	 */
+	public ImmutableTrack transposed(int steps) {
+		return transposed(steps, 0, getNumElements());
+	}
+
+	/**
+	 * Returns a track with the elements from position start up to end transposed. Only
+	 * the storage holding those elements is copied.
+	 * @param steps the number of steps (positive or negative) to transpose
+	 * @param start the position of the first element to transpose
+	 * @param end the position after the last element to transpose
+	 * @return the new track
+	 */
+	public ImmutableTrack transposed(final int steps, int start, int end) {
+		PersistentVector<Playable> e = elements.map(start, end, new PersistentVector.Mapper<Playable>() {
+			public Playable map(Playable p) {
+				if (p instanceof ImmutableNote) return ((ImmutableNote) p).transposed(steps);
+				return ((ImmutableChord) p).transposed(steps);
+			}
+		});
+		return e == elements ? this : new ImmutableTrack(e, instrument);
+	}
+
+	/**
+	 * Returns a regular Track with the same instrument, holding this track's immutable
+	 * notes and chords. The Track can be changed freely: transposing it replaces its
+	 * elements with transposed copies, though the elements themselves cannot be changed.
+	 * @return the Track
+	 */
+	public Track toTrack() {
+		Track t = new Track();
+		t.setInstrument(instrument);
+		for (Object p : toArray()) {
+			t.add((Playable) p);
+		}
+		return t;
+	}
+
+	/**
+	 * Returns a PackedTrack with the same instrument and a copy of this track's notes
+	 * and chords.
+	 * @return the PackedTrack
+	 */
+	public PackedTrack toPackedTrack() {
+		PackedTrack t = new PackedTrack();
+		t.setInstrument(instrument);
+		for (Object p : toArray()) {
+			t.add((Playable) p);
+		}
+		return t;
+	}
+
+	private Object[] toArray() {
+		Object[] items = new Object[elements.size()];
+		elements.copyTo(items);
+		return items;
+	}
+
+	/**
+	 * Returns a String representation of the track, in the same form as a Track's.
+	 * @return the string representation of the track
+	 */
+	public String toString() {
+		return toTrack().toString();
+	}
+
+}
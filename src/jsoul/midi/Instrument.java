@@ -137,6 +137,45 @@ public class Instrument {
 			APPLAUSE = 126,
 			GUNSHOT = 127;
 
+	// the General MIDI instrument names, used when no soundbank is available
+	private static final String[] GM_NAMES = {
+		"Acoustic Grand Piano", "Bright Acoustic Piano", "Electric Grand Piano", "Honky-tonk Piano",
+		"Electric Piano 1", "Electric Piano 2", "Harpsichord", "Clavinet",
+		"Celesta", "Glockenspiel", "Music Box", "Vibraphone",
+		"Marimba", "Xylophone", "Tubular Bells", "Dulcimer",
+		"Drawbar Organ", "Percussive Organ", "Rock Organ", "Church Organ",
+		"Reed Organ", "Accordion", "Harmonica", "Tango Accordion",
+		"Acoustic Guitar (nylon)", "Acoustic Guitar (steel)", "Electric Guitar (jazz)", "Electric Guitar (clean)",
+		"Electric Guitar (muted)", "Overdriven Guitar", "Distortion Guitar", "Guitar Harmonics",
+		"Acoustic Bass", "Electric Bass (finger)", "Electric Bass (pick)", "Fretless Bass",
+		"Slap Bass 1", "Slap Bass 2", "Synth Bass 1", "Synth Bass 2",
+		"Violin", "Viola", "Cello", "Contrabass",
+		"Tremolo Strings", "Pizzicato Strings", "Orchestral Harp", "Timpani",
+		"String Ensemble 1", "String Ensemble 2", "Synth Strings 1", "Synth Strings 2",
+		"Choir Aahs", "Voice Oohs", "Synth Choir", "Orchestra Hit",
+		"Trumpet", "Trombone", "Tuba", "Muted Trumpet",
+		"French Horn", "Brass Section", "Synth Brass 1", "Synth Brass 2",
+		"Soprano Sax", "Alto Sax", "Tenor Sax", "Baritone Sax",
+		"Oboe", "English Horn", "Bassoon", "Clarinet",
+		"Piccolo", "Flute", "Recorder", "Pan Flute",
+		"Blown Bottle", "Shakuhachi", "Whistle", "Ocarina",
+		"Lead 1 (square)", "Lead 2 (sawtooth)", "Lead 3 (calliope)", "Lead 4 (chiff)",
+		"Lead 5 (charang)", "Lead 6 (voice)", "Lead 7 (fifths)", "Lead 8 (bass + lead)",
+		"Pad 1 (new age)", "Pad 2 (warm)", "Pad 3 (polysynth)", "Pad 4 (choir)",
+		"Pad 5 (bowed)", "Pad 6 (metallic)", "Pad 7 (halo)", "Pad 8 (sweep)",
+		"FX 1 (rain)", "FX 2 (soundtrack)", "FX 3 (crystal)", "FX 4 (atmosphere)",
+		"FX 5 (brightness)", "FX 6 (goblins)", "FX 7 (echoes)", "FX 8 (sci-fi)",
+		"Sitar", "Banjo", "Shamisen", "Koto",
+		"Kalimba", "Bagpipe", "Fiddle", "Shanai",
+		"Tinkle Bell", "Agogo", "Steel Drums", "Woodblock",
+		"Taiko Drum", "Melodic Tom", "Synth Drum", "Reverse Cymbal",
+		"Guitar Fret Noise", "Breath Noise", "Seashore", "Bird Tweet",
+		"Telephone Ring", "Helicopter", "Applause", "Gunshot"
+	};
+
+	private static Soundbank soundbank = null;
+	private static volatile String[] names = null;
+
 	private int instrument;
 
 	/**
@@ -168,14 +207,68 @@ public class Instrument {
 	 * @return a String representation
 	 */
 	public String toString() {
-		String s = "";
+		return getName(instrument);
+	}
+
+	/**
+	 * Returns the name of an instrument. Names are read from the soundbank set with
+	 * setSoundbank, or else from the default synthesizer's soundbank, which is loaded
+	 * at most once. If no soundbank is available, the General MIDI name is used.
+	 * @param instNum the instrument value (0-127)
+	 * @return the instrument name, or an empty String if the value is out of range
+	 */
+	public static String getName(int instNum) {
+		if (instNum < 0 || instNum >= GM_NAMES.length) return "";
+		String[] n = names;
+		if (n == null) {
+			synchronized (Instrument.class) {
+				n = names;
+				if (n == null) {
+					n = loadNames(soundbank != null ? soundbank : defaultSoundbank());
+					names = n;
+				}
+			}
+		}
+		return n[instNum];
+	}
+
+	/**
+	 * Sets the soundbank that instrument names are read from. Providing null goes back
+	 * to the default synthesizer's soundbank.
+	 * @param sb the soundbank, or null
+	 */
+	public static void setSoundbank(Soundbank sb) {
+		synchronized (Instrument.class) {
+			soundbank = sb;
+			names = null;
+		}
+	}
+
+	private static Soundbank defaultSoundbank() {
 		try {
-			s = MidiSystem.getSynthesizer().getDefaultSoundbank().getInstruments()[instrument].getName();
+			return MidiSystem.getSynthesizer().getDefaultSoundbank();
 		} catch (MidiUnavailableException e) {
-			System.err.println("Error: (instrument) cannot retrieve instrument");
-			//e.printStackTrace();
+			return null; // e.g. on a headless machine, so fall back to the General MIDI names
+		}
+	}
+
+	// the name of each program in the first bank of the soundbank, or the General
+	// MIDI name for programs it does not contain
+	private static String[] loadNames(Soundbank sb) {
+		String[] n = GM_NAMES.clone();
+		if (sb != null) {
+			boolean[] found = new boolean[n.length];
+			javax.sound.midi.Instrument[] instruments = sb.getInstruments();
+			for (int i = 0; i < instruments.length; i++) {
+				Patch patch = instruments[i].getPatch();
+				int program = patch.getProgram();
+				if (patch.getBank() == 0 && program >= 0 && program < n.length && !found[program]) {
+					n[program] = instruments[i].getName();
+					found[program] = true;
+				}
+			}
 		}
-		return s;
+		return n;
 	}
 
 }
\ No newline at end of file
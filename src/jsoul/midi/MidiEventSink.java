@@ -0,0 +1,33 @@
+package jsoul.midi;
+import java.io.IOException;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Receives the MIDI events of a rendered Track, in the order they occur. Both the
+ * javax.sound.midi conversion and the native file writer render through this
+ * interface, so the two always see exactly the same events.
+ * @author Andrew Goldin
+ */
+interface MidiEventSink {
+
+	/**
+	 * Receives a channel message.
+	 * @param tick the absolute tick of the event
+	 * @param command the command, e.g. ShortMessage.NOTE_ON
+	 * @param channel the channel (0-15)
+	 * @param data1 the first data byte
+	 * @param data2 the second data byte, ignored by single data byte commands
+	 */
+	void shortMessage(long tick, int command, int channel, int data1, int data2)
+			throws InvalidMidiDataException, IOException;
+
+	/**
+	 * Receives a meta message.
+	 * @param tick the absolute tick of the event
+	 * @param type the meta message type, e.g. 81 for a tempo change
+	 * @param data the message data
+	 */
+	void metaMessage(long tick, int type, byte[] data)
+			throws InvalidMidiDataException, IOException;
+
+}
@@ -1,6 +1,5 @@
 package jsoul.midi;
 import java.io.*;
-import java.util.ArrayList;
 import javax.sound.midi.*;
 
 /**
@@ -78,12 +77,29 @@ public class MidiFile {
 	 * @param s the Sequence to be written
 	 */
 	public void writeToFile(Sequence s) {
-		javax.sound.midi.Sequence seq = s.createMidiSequence();
+		OutputStream out = null;
 		try {
-			MidiSystem.write(seq, MidiSystem.getMidiFileTypes(seq)[0], new File(name));
+			out = new FileOutputStream(name);
+			new MidiFileWriter(out).write(s);
 		} catch (IOException e) {
 			System.err.println("Error: (Midi) failure to write sequence to file " + name);
 			//e.printStackTrace();
+		} catch (InvalidMidiDataException e) {
+			System.err.println("Error: (Midi) failure to write sequence to file " + name);
+			//e.printStackTrace();
+		} finally {
+			close(out);
+		}
+	}
+
+	// closes a stream, ignoring failures
+	private static void close(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
 		}
 	}
 	
@@ -92,122 +108,105 @@ public class MidiFile {
 	 */
 	public void clear() {
 		Track[] tracks = null;
+		int resolution;
 		try {
-			tracks = new Track[MidiSystem.getSequence(new File(name)).getTracks().length];
+			MidiFileReader reader = new MidiFileReader(name);
+			tracks = new Track[reader.getNumTracks()];
+			resolution = reader.getResolution();
 		} catch (InvalidMidiDataException e) {
 			System.err.println("Error: (Midi) cannot clear MIDI file " + name);
 			//e.printStackTrace();
+			return;
 		} catch (IOException e) {
 			System.err.println("Error: (Midi) cannot clear MIDI file " + name);
 			//e.printStackTrace();
+			return;
 		}
 		for (int i = 0; i < tracks.length; i++) tracks[i] = new Track();
 		Sequence s = new Sequence(tracks);
+		s.setResolution(resolution);
 		writeToFile(s);
 	}
 
-	// this method will only work on files created with jsoul
 	/**
 	 * Will convert the file (if it exists in the system) into a jsoul-compatible
-	 * Sequence that can be modified using jsoul's API. Currently is only guaranteed
-	 * to work on files that were originally created with jsoul.
-	 * @return the jsoul Sequence generated from the file
+	 * Sequence that can be modified using jsoul's API. Files created with jsoul are
+	 * read back exactly; see MidiFileReader for how other files are decoded.
+	 * @return the jsoul Sequence generated from the file, or null if it cannot be read
 	 */
 	public Sequence getSequence() {
-		javax.sound.midi.Sequence inputSequence = null;
 		try {
-			inputSequence = MidiSystem.getSequence(new File(name));
+			return new MidiFileReader(name).read();
 		} catch (InvalidMidiDataException e) {
-			System.err.println("Error: (Midi) error retrieving java sequence from file " + name);
+			System.err.println("Error: (Midi) error retrieving sequence from file " + name);
 			//e.printStackTrace();
 		} catch (IOException e) {
-			System.err.println("Error: (Midi) error retrieving java sequence from file " + name);
+			System.err.println("Error: (Midi) error retrieving sequence from file " + name);
 			//e.printStackTrace();
 		}
-		javax.sound.midi.Track[] inputTracks = inputSequence.getTracks();
-		Track[] outputTracks = new Track[inputTracks.length];
-		float tempo = 120;
-		for (int i = 0; i < inputTracks.length; i++) {
-			System.out.println(inputTracks[i].size());
-			javax.sound.midi.Track currentTrack = inputTracks[i];
-			outputTracks[i] = new Track();
-			int velocity = 0, chordSize = 0;
-			ArrayList<Integer> pitchList = new ArrayList<Integer>();
-			boolean chord = false;
-			long currentTick = 0;
-			for (int j = 0; j < currentTrack.size(); j++) {
-				MidiEvent event = currentTrack.get(j);
-				MidiMessage message = event.getMessage();
-				if (message instanceof ShortMessage) {
-					ShortMessage sMessage = (ShortMessage) message;
-					if (sMessage.getCommand() == ShortMessage.PROGRAM_CHANGE) {
-						outputTracks[i].setInstrument(sMessage.getData1());
-					}
-					else if (sMessage.getCommand() == ShortMessage.NOTE_ON) {
-						chord = true;
-						velocity = sMessage.getData2();
-						currentTick = event.getTick();
-						chordSize++;
-					}
-					else if (sMessage.getCommand() == ShortMessage.NOTE_OFF) {
-						pitchList.add(sMessage.getData1());
-						chordSize--;
-						if (chordSize == 0 && chord) {
-							if (pitchList.size() == 1) {
-								outputTracks[i].add(new Note(pitchList.get(0),
-										velocity, (int) (event.getTick() - currentTick)));
-							}
-							else {
-								int[] list = new int[pitchList.size()];
-								for (int k = 0; k < list.length; k++)
-									list[k] = pitchList.get(k).intValue();
-								outputTracks[i].add(new Chord(list, velocity,
-										(int) (event.getTick() - currentTick)));
-							}
-							chord = false;
-							pitchList.clear();
-						}
-					}
-				}
-				else if (message instanceof MetaMessage) {
-					MetaMessage mMessage = (MetaMessage) message;
-					if (mMessage.getType() == 81) { // check for set tempo message
-						String hexString = new java.math.BigInteger(mMessage.getData()).toString(16);
-						tempo = 60000000 / Integer.parseInt(hexString, 16);
-					}
-				}
-			}
+		return null;
+	}
+
+	/**
+	 * Converts only the chosen tracks of the file (if it exists in the system) into a
+	 * jsoul Sequence, in the order given. The other tracks are skipped without being
+	 * decoded.
+	 * @param trackNums the indices of the tracks to read
+	 * @return the jsoul Sequence generated from the chosen tracks, or null if the file
+	 * cannot be read
+	 */
+	public Sequence getSequence(int... trackNums) {
+		try {
+			return new MidiFileReader(name).read(trackNums);
+		} catch (InvalidMidiDataException e) {
+			System.err.println("Error: (Midi) error retrieving sequence from file " + name);
+			//e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Error: (Midi) error retrieving sequence from file " + name);
+			//e.printStackTrace();
 		}
-		Sequence s = new Sequence();
-		s.setTracks(outputTracks);
-		s.setTempoInBPM(tempo);
-		return s;
+		return null;
 	}
 	
 	/**
-	 * Appends a given Sequence to the end of an existing MIDI file, and writing the result
-	 * to a new file. Will only work if the original file and provided sequence have the
-	 * same number of tracks.
+	 * Reads the chosen tracks of the file (if it exists in the system) one element at a
+	 * time, passing each Note and Chord to the visitor as it is decoded instead of
+	 * building a Sequence. Reading stops when the visitor returns false. If no tracks
+	 * are given, every track is read.
+	 * @param v the visitor to pass the elements to
+	 * @param trackNums the indices of the tracks to read
+	 */
+	public void visit(ElementVisitor v, int... trackNums) {
+		try {
+			MidiFileReader reader = new MidiFileReader(name);
+			if (trackNums.length == 0) reader.visit(v);
+			else reader.visit(v, trackNums);
+		} catch (InvalidMidiDataException e) {
+			System.err.println("Error: (Midi) error reading elements from file " + name);
+			//e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Error: (Midi) error reading elements from file " + name);
+			//e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Appends a given Sequence to the end of the existing MIDI file, modifying the file
+	 * in place. Each track of the sequence is added to the end of the corresponding track
+	 * in the file, on the channel that track already uses. Will only work if the original
+	 * file and provided sequence have the same number of tracks. The existing events are
+	 * not decoded, so the cost depends on the size of the appended sequence rather than
+	 * the size of the file, apart from moving later tracks along to make room.
 	 * @param s The sequence to append.
 	 */
 	public void append(Sequence s) {
-		Track[] sourceTracks = this.getSequence().getTracks();
-		Track[] inputTracks = s.getTracks();
-		if (sourceTracks.length == inputTracks.length) {
-			for (int i = 0; i < inputTracks.length; i++) {
-				sourceTracks[i].add(inputTracks[i]);
-			}
-		}
-		else {
-			System.err.println("Error: (Midi) could not append sequence: mismatching track numbers");
-			return;
-		}
-		String fname = name.substring(0, name.length() - 4) + "_appended.mid";
-		javax.sound.midi.Sequence seq = s.createMidiSequence();
 		try {
-			MidiSystem.write(seq, MidiSystem.getMidiFileTypes(seq)[0], new File(fname));
+			MidiFileAppender.append(name, s);
+		} catch (InvalidMidiDataException e) {
+			System.err.println("Error: (Midi) could not append sequence: " + e.getMessage());
+			//e.printStackTrace();
 		} catch (IOException e) {
-			System.err.println("Error: (Midi) failure to write appended sequence to file");
+			System.err.println("Error: (Midi) failure to write appended sequence to file " + name);
 			//e.printStackTrace();
 		}
 	}
@@ -0,0 +1,285 @@
+package jsoul.midi;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * Appends the tracks of a Sequence to the tracks of an existing MIDI file, in place.
+ * Only the chunk headers and the ends of the existing tracks are read: the end of
+ * track event of each track is removed, the new events are written after it, and the
+ * chunk lengths are patched. Chunks after the first modified track are moved along
+ * the file as raw bytes, so the existing events are never decoded.
+ * @author Andrew Goldin
+ */
+class MidiFileAppender {
+
+	private static final int COPY_BUFFER_SIZE = 65536;
+
+	private FileChannel channel;
+	private int numTracks, resolution;
+	private long[] headers, eotStarts, chunkEnds, delays;
+	private int[] channels;
+
+	private MidiFileAppender(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Appends each track of the sequence to the end of the corresponding track of the
+	 * file. The file must have the same number of tracks as the sequence. The instruments
+	 * and tempo of the sequence are not used, and its durations are converted to the
+	 * resolution of the file if it differs. If writing fails partway, the file may be
+	 * left incomplete.
+	 * @param fileName the name of the file to append to
+	 * @param s the sequence to append
+	 * @throws IOException if the file cannot be read or written
+	 * @throws InvalidMidiDataException if the file is not a valid MIDI file, or the
+	 * track numbers do not match
+	 */
+	static void append(String fileName, Sequence s) throws IOException, InvalidMidiDataException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			MidiFileAppender appender = new MidiFileAppender(channel);
+			appender.locateTracks();
+			if (appender.numTracks != s.getNumTracks()) {
+				throw new InvalidMidiDataException("mismatching track numbers");
+			}
+			appender.append(s);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// finds the track chunks, the end of track event of each, and the channel each plays on
+	private void locateTracks() throws IOException, InvalidMidiDataException {
+		ByteBuffer header = read(0, 14);
+		if (header.getInt(0) != 0x4D546864) { // "MThd"
+			throw new InvalidMidiDataException("not a MIDI file: missing MThd header");
+		}
+		numTracks = header.getShort(10) & 0xFFFF;
+		resolution = header.getShort(12);
+		headers = new long[numTracks];
+		eotStarts = new long[numTracks];
+		chunkEnds = new long[numTracks];
+		delays = new long[numTracks];
+		channels = new int[numTracks];
+		long pos = 8L + header.getInt(4);
+		int found = 0;
+		while (found < numTracks) {
+			ByteBuffer chunk = read(pos, 8);
+			long end = pos + 8 + (chunk.getInt(4) & 0xFFFFFFFFL);
+			if (end > channel.size()) {
+				throw new InvalidMidiDataException("chunk at byte " + pos + " runs past the end of the file");
+			}
+			if (chunk.getInt(0) == 0x4D54726B) { // "MTrk"
+				headers[found] = pos;
+				chunkEnds[found] = end;
+				locateEnd(found, pos + 8, end);
+				found++;
+			}
+			pos = end;
+		}
+	}
+
+	// finds the end of track event and channel of a track chunk
+	private void locateEnd(int trackNum, long start, long end)
+			throws IOException, InvalidMidiDataException {
+		TrackScanner scanner = new TrackScanner(start, end);
+		// nearly always, the chunk ends with a single byte delta time, preceded by the
+		// last data byte of a channel message, so the end of track is found right away
+		if (end - start >= 5) {
+			ByteBuffer last = read(end - 5, 5);
+			if ((last.get(0) & 0x80) == 0 && (last.get(1) & 0x80) == 0
+					&& (last.get(2) & 0xFF) == 0xFF && last.get(3) == 47 && last.get(4) == 0) {
+				eotStarts[trackNum] = end - 4;
+				delays[trackNum] = last.get(1);
+				channels[trackNum] = scanner.scan(false); // -1 if the track has no channel messages
+				return;
+			}
+		}
+		channels[trackNum] = scanner.scan(true);
+		eotStarts[trackNum] = scanner.eotStart;
+		delays[trackNum] = scanner.eotDelay;
+	}
+
+	private void append(Sequence s) throws IOException, InvalidMidiDataException {
+		if (numTracks == 0) return;
+		if (resolution <= 0) {
+			throw new InvalidMidiDataException("cannot append to a file without a ticks per beat resolution");
+		}
+		if (s.getResolution() != resolution) {
+			s = s.copy(); // keep the timing of the new events in the resolution of the file
+			s.rescale(resolution);
+		}
+		// tracks without channel messages play on the channel they would be written on
+		ChannelMap channelMap = ChannelMap.allocate(s);
+		// encode the new events for each track, replacing its end of track event
+		byte[][] additions = new byte[numTracks][];
+		long[] shifts = new long[numTracks + 1];
+		for (int i = 0; i < numTracks; i++) {
+			long growth = 0;
+			if (s.getTrack(i).getNumElements() > 0) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new MidiFileWriter(out).writeContinuation(s.getTrack(i),
+						channels[i] >= 0 ? channels[i] : channelMap.getChannel(i), delays[i]);
+				additions[i] = out.toByteArray();
+				growth = additions[i].length - (chunkEnds[i] - eotStarts[i]);
+			}
+			shifts[i + 1] = shifts[i] + growth;
+		}
+		// move everything after the end of each track along by the growth of the tracks
+		// before it. Region i runs up to the end of track i, or up to its end of track
+		// event if that is being replaced; region numTracks is whatever follows the last
+		// track. Regions moving back are moved first, front to back, and then those moving
+		// on, back to front, so that no region overwrites bytes which have yet to be moved.
+		long fileEnd = channel.size();
+		long[] regionStarts = new long[numTracks + 1], regionEnds = new long[numTracks + 1];
+		for (int i = 0; i <= numTracks; i++) {
+			regionStarts[i] = i == 0 ? headers[0] : chunkEnds[i - 1];
+			regionEnds[i] = i == numTracks ? fileEnd : additions[i] != null ? eotStarts[i] : chunkEnds[i];
+		}
+		for (int i = 0; i <= numTracks; i++) {
+			if (shifts[i] < 0) move(regionStarts[i], regionEnds[i], shifts[i]);
+		}
+		for (int i = numTracks; i >= 0; i--) {
+			if (shifts[i] > 0) move(regionStarts[i], regionEnds[i], shifts[i]);
+		}
+		// then write the new events into the gaps and patch the chunk lengths
+		for (int i = 0; i < numTracks; i++) {
+			if (additions[i] != null) {
+				channel.write(ByteBuffer.wrap(additions[i]), eotStarts[i] + shifts[i]);
+				ByteBuffer length = ByteBuffer.allocate(4);
+				length.putInt(0, (int) (eotStarts[i] - headers[i] - 8 + additions[i].length));
+				channel.write(length, headers[i] + 4 + shifts[i]);
+			}
+		}
+		if (shifts[numTracks] < 0) {
+			channel.truncate(fileEnd + shifts[numTracks]);
+		}
+	}
+
+	// moves the bytes from start to end by the given distance. Moving forward, they are
+	// copied from the end backwards, and moving back, from the start onwards, so that
+	// nothing is overwritten before it has been moved.
+	private void move(long start, long end, long distance) throws IOException {
+		if (distance == 0 || start >= end) return;
+		ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+		long done = 0;
+		while (done < end - start) {
+			int length = (int) Math.min(buffer.capacity(), end - start - done);
+			long pos = distance > 0 ? end - done - length : start + done;
+			done += length;
+			buffer.clear();
+			buffer.limit(length);
+			readFully(buffer, pos);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, pos + distance + buffer.position());
+			}
+		}
+	}
+
+	private ByteBuffer read(long pos, int length) throws IOException, InvalidMidiDataException {
+		if (pos + length > channel.size()) {
+			throw new InvalidMidiDataException("unexpected end of file at byte " + pos);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(buffer, pos);
+		return buffer;
+	}
+
+	private void readFully(ByteBuffer buffer, long pos) throws IOException {
+		int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pos + buffer.position() - start) < 0) {
+				throw new EOFException("unexpected end of file at byte " + pos);
+			}
+		}
+	}
+
+	// walks the events of a track chunk without decoding them, reading the file
+	// through a small window
+	private class TrackScanner {
+
+		private ByteBuffer window = ByteBuffer.allocate(4096);
+		private long windowStart = -1, pos, end;
+		long eotStart, eotDelay;
+
+		TrackScanner(long start, long end) {
+			pos = start;
+			this.end = end;
+			eotStart = end;
+		}
+
+		// returns the channel of the first channel message, or -1 if there is none. If
+		// findEnd is true, keeps going to locate the end of track event.
+		int scan(boolean findEnd) throws IOException, InvalidMidiDataException {
+			int channel = -1, runningStatus = -1;
+			while (pos < end) {
+				long eventStart = pos;
+				long delta = readVarInt();
+				int status = readByte();
+				if (status < 0x80) {
+					if (runningStatus < 0) {
+						throw new InvalidMidiDataException("data byte without status at byte " + (pos - 1));
+					}
+					pos--;
+					status = runningStatus;
+				}
+				if (status == 0xFF) {
+					int type = readByte();
+					long length = readVarInt();
+					if (type == 47) {
+						eotStart = eventStart;
+						eotDelay = delta;
+						return channel;
+					}
+					pos += length;
+				}
+				else if (status == 0xF0 || status == 0xF7) {
+					pos += readVarInt();
+				}
+				else {
+					runningStatus = status;
+					if (channel < 0) {
+						channel = status & 0x0F;
+						if (!findEnd) return channel;
+					}
+					pos += MidiFileWriter.dataLength(status & 0xF0);
+				}
+			}
+			// no end of track event, so the new events simply follow the last one
+			eotStart = end;
+			eotDelay = 0;
+			return channel;
+		}
+
+		private int readByte() throws IOException, InvalidMidiDataException {
+			if (pos >= end) {
+				throw new InvalidMidiDataException("track chunk ends in the middle of an event");
+			}
+			if (windowStart < 0 || pos < windowStart || pos >= windowStart + window.limit()) {
+				window.clear();
+				window.limit((int) Math.min(window.capacity(), end - pos));
+				readFully(window, pos);
+				windowStart = pos;
+			}
+			return window.get((int) (pos++ - windowStart)) & 0xFF;
+		}
+
+		private long readVarInt() throws IOException, InvalidMidiDataException {
+			long value = 0;
+			int b;
+			do {
+				b = readByte();
+				value = (value << 7) | (b & 0x7F);
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+	}
+
+}
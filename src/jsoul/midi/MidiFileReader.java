@@ -0,0 +1,522 @@
+package jsoul.midi;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Reads Standard MIDI Files into jsoul Sequences. The file is memory-mapped and
+ * its chunks are parsed in place, decoding the events of each track directly into
+ * Notes and Chords without building a javax.sound.midi.Sequence first. Tracks can
+ * be read individually, so only the tracks of interest need to be decoded, and can be
+ * streamed an element at a time through an Iterator or an ElementVisitor, in which case
+ * only the element being decoded is held in memory.
+ * <p>
+ * Since a jsoul Track plays one Note or Chord at a time, the notes of a track are
+ * grouped by the tick at which they start: notes started together become a Chord,
+ * which lasts until its last note ends, or until the next note starts if that is
+ * sooner. Silences between notes become rests, which are Notes with a velocity of 0.
+ * NOTE_ON events with a velocity of 0 end notes, as do NOTE_OFF events, and notes are
+ * matched by channel and pitch. A note cut short by the next one is ended by the first
+ * note-off on its channel and pitch, even when that comes after a new note-on of the
+ * same pitch at the same tick, as when a note is repeated. Files created with jsoul are read back exactly, apart
+ * from rests of no duration, which are dropped.
+ * @author Andrew Goldin
+ */
+public class MidiFileReader {
+
+	private ByteBuffer data;
+	private int type, resolution;
+	private int[] trackStarts, trackEnds;
+	private boolean pooling;
+
+	/**
+	 * Constructs a reader for the MIDI file with the given name. The file is mapped
+	 * into memory and its header and chunk layout are read immediately.
+	 * @param fileName the name of the file to read
+	 * @throws IOException if the file cannot be opened or mapped
+	 * @throws InvalidMidiDataException if the file is not a valid MIDI file
+	 */
+	public MidiFileReader(String fileName) throws IOException, InvalidMidiDataException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		readChunks();
+	}
+
+	/**
+	 * Constructs a reader for MIDI file data that is already in memory. The data
+	 * between the buffer's position and limit is read, and the buffer itself is
+	 * not modified.
+	 * @param buffer the contents of a MIDI file
+	 * @throws InvalidMidiDataException if the data is not a valid MIDI file
+	 */
+	public MidiFileReader(ByteBuffer buffer) throws InvalidMidiDataException {
+		data = buffer.slice();
+		readChunks();
+	}
+
+	/**
+	 * Returns the MIDI file type (0, 1 or 2) given in the file header.
+	 * @return the file type
+	 */
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the timing resolution of the file, in ticks per quarter note.
+	 * @return the resolution
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Returns the number of tracks in the file.
+	 * @return the number of tracks
+	 */
+	public int getNumTracks() {
+		return trackStarts.length;
+	}
+
+	/**
+	 * Sets whether single notes are taken from the NotePool rather than created for each
+	 * note read. Pooled notes are shared and read-only, but a file full of repeated notes
+	 * then takes a fraction of the memory. Chords are not affected. Off by default.
+	 * @param pooled true to use pooled notes
+	 */
+	public void setNotePooling(boolean pooled) {
+		pooling = pooled;
+	}
+
+	/**
+	 * Returns whether single notes are taken from the NotePool.
+	 * @return true if notes are pooled
+	 */
+	public boolean isNotePooling() {
+		return pooling;
+	}
+
+	/**
+	 * Reads every track in the file into a jsoul Sequence.
+	 * @return the jsoul Sequence generated from the file
+	 * @throws InvalidMidiDataException if a track contains malformed events
+	 */
+	public Sequence read() throws InvalidMidiDataException {
+		return read(allTracks());
+	}
+
+	/**
+	 * Reads the chosen tracks of the file into a jsoul Sequence, in the order given.
+	 * Tracks that are not chosen are skipped without being decoded. The sequence has the
+	 * resolution of the file, so durations are kept exactly as they are in the file. The
+	 * tempo changes and time signatures found in the chosen tracks make up the tempo map
+	 * of the sequence; where several tracks change the tempo at the same tick, the last
+	 * one read is used.
+	 * @param trackNums the indices of the tracks to read
+	 * @return the jsoul Sequence generated from the chosen tracks
+	 * @throws InvalidMidiDataException if a track contains malformed events
+	 */
+	public Sequence read(int... trackNums) throws InvalidMidiDataException {
+		Track[] tracks = new Track[trackNums.length];
+		TempoMap tempoMap = new TempoMap();
+		for (int i = 0; i < trackNums.length; i++) {
+			checkTrack(trackNums[i]);
+			TrackDecoder decoder = new TrackDecoder(trackNums[i]);
+			decoder.tempoMap = tempoMap;
+			// the first note tells whether the track is played on the percussion channel
+			Playable p = decoder.next();
+			tracks[i] = decoder.channel == ChannelMap.PERCUSSION_CHANNEL ? new PercussionTrack() : new Track();
+			for (; p != null; p = decoder.next()) {
+				tracks[i].add(p);
+			}
+			tracks[i].setInstrument(decoder.instrument);
+		}
+		Sequence s = new Sequence(tracks);
+		s.setTempoMap(tempoMap);
+		s.setResolution(resolution);
+		return s;
+	}
+
+	/**
+	 * Decodes every track of the file, passing each Note and Chord to the visitor as
+	 * soon as it is read. See visit(ElementVisitor, int...).
+	 * @param v the visitor to pass the elements to
+	 * @return true if the whole file was read, or false if the visitor stopped early
+	 * @throws InvalidMidiDataException if a track contains malformed events
+	 */
+	public boolean visit(ElementVisitor v) throws InvalidMidiDataException {
+		return visit(v, allTracks());
+	}
+
+	/**
+	 * Decodes the chosen tracks one after another, passing each Note and Chord to the
+	 * visitor as soon as it is read rather than collecting them into a Sequence. Reading
+	 * stops as soon as the visitor returns false, so that, for example, only the first
+	 * few bars of a large file are decoded.
+	 * @param v the visitor to pass the elements to
+	 * @param trackNums the indices of the tracks to read
+	 * @return true if every chosen track was read to the end, or false if the visitor
+	 * stopped early
+	 * @throws InvalidMidiDataException if a track contains malformed events
+	 */
+	public boolean visit(ElementVisitor v, int... trackNums) throws InvalidMidiDataException {
+		for (int i = 0; i < trackNums.length; i++) {
+			checkTrack(trackNums[i]);
+			TrackDecoder decoder = new TrackDecoder(trackNums[i]);
+			for (Playable p = decoder.next(); p != null; p = decoder.next()) {
+				if (!v.visit(trackNums[i], decoder.startTick, p)) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns an iterator over the Notes and Chords of a track, which decodes each
+	 * element only when it is asked for. The iterator can be abandoned at any point.
+	 * Since Iterator methods cannot throw checked exceptions, malformed events cause
+	 * next() and hasNext() to throw an IllegalStateException, whose cause is the
+	 * InvalidMidiDataException.
+	 * @param trackNum the index of the track to read
+	 * @return an iterator over the elements of the track
+	 */
+	public Iterator<Playable> iterator(int trackNum) {
+		checkTrack(trackNum);
+		return new TrackIterator(new TrackDecoder(trackNum));
+	}
+
+	private int[] allTracks() {
+		int[] trackNums = new int[getNumTracks()];
+		for (int i = 0; i < trackNums.length; i++) {
+			trackNums[i] = i;
+		}
+		return trackNums;
+	}
+
+	private void checkTrack(int trackNum) {
+		if (trackNum < 0 || trackNum >= getNumTracks()) {
+			throw new IndexOutOfBoundsException("No track " + trackNum
+					+ " in a file with " + getNumTracks() + " tracks");
+		}
+	}
+
+	// reads the header chunk and locates the track chunks, skipping any unknown chunks
+	private void readChunks() throws InvalidMidiDataException {
+		if (data.limit() < 14 || data.getInt(0) != 0x4D546864) { // "MThd"
+			throw new InvalidMidiDataException("not a MIDI file: missing MThd header");
+		}
+		int headerLength = data.getInt(4);
+		if (headerLength < 6 || 8L + headerLength > data.limit()) {
+			throw new InvalidMidiDataException("invalid MThd header length " + headerLength);
+		}
+		type = data.getShort(8) & 0xFFFF;
+		int numTracks = data.getShort(10) & 0xFFFF;
+		int division = data.getShort(12);
+		if (division < 0) {
+			throw new InvalidMidiDataException("SMPTE time division is not supported");
+		}
+		if (division == 0) {
+			throw new InvalidMidiDataException("invalid time division 0");
+		}
+		resolution = division;
+		trackStarts = new int[numTracks];
+		trackEnds = new int[numTracks];
+		int found = 0;
+		long pos = 8L + headerLength;
+		while (found < numTracks && pos + 8 <= data.limit()) {
+			int id = data.getInt((int) pos);
+			long length = data.getInt((int) pos + 4) & 0xFFFFFFFFL;
+			long start = pos + 8;
+			if (start + length > data.limit()) {
+				throw new InvalidMidiDataException("chunk at byte " + pos + " runs past the end of the file");
+			}
+			if (id == 0x4D54726B) { // "MTrk"
+				trackStarts[found] = (int) start;
+				trackEnds[found] = (int) (start + length);
+				found++;
+			}
+			pos = start + length;
+		}
+		if (found < numTracks) {
+			throw new InvalidMidiDataException("expected " + numTracks + " tracks but found " + found);
+		}
+	}
+
+	// decodes the events of one track chunk, producing its Notes and Chords one at a time
+	private class TrackDecoder {
+
+		private int pos, end, runningStatus;
+		private long tick;
+		int instrument;
+		int channel = -1; // the channel of the last note started, if any
+		TempoMap tempoMap; // where tempo changes and time signatures go, if anywhere
+
+		// the notes of each channel that are sounding, by channel * 128 + pitch: the group
+		// each was started in, and how many times it was started in that group
+		private int[] activeGroups = new int[16 * 128];
+		private int[] activeCounts = new int[16 * 128];
+		// the note-offs still to come for notes that were cut short, by channel * 128 + pitch
+		private int[] pendingOffs = new int[16 * 128];
+		// the notes started together in the group being read, which becomes the next element
+		private int group, groupActive, velocity;
+		private long onset;
+		private int[] pitches = new int[8];
+		private int[] slots = new int[8]; // the channel * 128 + pitch of each of the pitches
+		private int numPitches;
+		private long lastEnd; // the tick at which the element last produced ended
+		private int restPitch; // the pitch given to rests
+		long startTick; // the start of the element last returned
+
+		TrackDecoder(int trackNum) {
+			pos = trackStarts[trackNum];
+			end = trackEnds[trackNum];
+			runningStatus = -1;
+			instrument = Instrument.PIANO;
+		}
+
+		// returns the next Note or Chord of the track, or null once the track has ended
+		Playable next() throws InvalidMidiDataException {
+			while (pos < end) {
+				tick += readVarInt();
+				int status = readByte();
+				if (status < 0x80) {
+					// running status: the byte just read is the first data byte
+					if (runningStatus < 0) {
+						throw new InvalidMidiDataException("data byte without status at byte " + (pos - 1));
+					}
+					pos--;
+					status = runningStatus;
+				}
+				if (status == 0xFF) {
+					int metaType = readByte();
+					int length = (int) readVarInt();
+					int dataStart = skip(length);
+					if (metaType == 81 && length > 0) { // tempo change
+						if (tempoMap != null) tempoMap.setTempo(tick, readTempo(dataStart, length));
+					}
+					else if (metaType == 88 && length >= 2) { // time signature
+						int numerator = data.get(dataStart) & 0xFF, power = data.get(dataStart + 1);
+						if (tempoMap != null && numerator > 0 && power >= 0 && power <= 7) {
+							tempoMap.setTimeSignature(tick, numerator, 1 << power);
+						}
+					}
+					else if (metaType == 47) { // end of track
+						pos = end;
+					}
+				}
+				else if (status == 0xF0 || status == 0xF7) { // system exclusive
+					skip((int) readVarInt());
+				}
+				else if (status >= 0xF0) {
+					throw new InvalidMidiDataException("unexpected status byte " + status + " at byte " + (pos - 1));
+				}
+				else {
+					runningStatus = status;
+					Playable p = channelMessage(status);
+					if (p != null) return p;
+				}
+			}
+			// notes still sounding at the end of the track end with it, as does any silence
+			if (groupActive > 0) return finishGroup(tick);
+			if (tick > lastEnd) {
+				startTick = lastEnd;
+				lastEnd = tick;
+				return note(restPitch, 0, (int) (tick - startTick));
+			}
+			return null;
+		}
+
+		// handles a channel message, returning an element if one has just been completed
+		private Playable channelMessage(int status) throws InvalidMidiDataException {
+			int command = status & 0xF0;
+			int data1 = readByte();
+			int data2 = MidiFileWriter.dataLength(command) > 1 ? readByte() : 0;
+			if (command == ShortMessage.PROGRAM_CHANGE) {
+				instrument = data1;
+			}
+			else if (command == ShortMessage.NOTE_ON && data2 > 0) {
+				return noteOn(status & 0x0F, data1, data2);
+			}
+			else if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF) {
+				return noteOff(status & 0x0F, data1);
+			}
+			return null;
+		}
+
+		// starts a note. Notes started at the same tick while the notes before them are
+		// still sounding form a chord. A note starting later cuts short the element being
+		// read, and a note starting after a silence is preceded by a rest.
+		private Playable noteOn(int ch, int pitch, int v) {
+			Playable p = null;
+			if (groupActive > 0 && tick != onset) {
+				cutGroup();
+				p = finishGroup(tick); // overlapping notes are cut short
+			}
+			else if (groupActive == 0 && tick > lastEnd) {
+				startTick = lastEnd;
+				p = note(restPitch, 0, (int) (tick - lastEnd));
+				lastEnd = tick;
+			}
+			if (groupActive == 0) {
+				group++;
+				onset = tick;
+				velocity = 0;
+			}
+			int slot = ch << 7 | pitch;
+			if (activeGroups[slot] == group) activeCounts[slot]++;
+			else {
+				activeGroups[slot] = group;
+				activeCounts[slot] = 1;
+			}
+			if (numPitches == pitches.length) {
+				pitches = Arrays.copyOf(pitches, numPitches * 2);
+				slots = Arrays.copyOf(slots, numPitches * 2);
+			}
+			slots[numPitches] = slot;
+			pitches[numPitches++] = pitch;
+			velocity = Math.max(velocity, v);
+			groupActive++;
+			channel = ch;
+			return p;
+		}
+
+		// ends a note, returning the element being read once all of its notes have ended.
+		// The note-offs of notes that were cut short, and of notes never started, are
+		// ignored. A cut note's note-off is the first to come on its channel and pitch, so
+		// a note retriggered before the old note-off, at the same tick, is not ended by it.
+		private Playable noteOff(int ch, int pitch) {
+			int slot = ch << 7 | pitch;
+			restPitch = pitch;
+			if (pendingOffs[slot] > 0) {
+				pendingOffs[slot]--;
+				return null;
+			}
+			if (groupActive == 0 || activeGroups[slot] != group || activeCounts[slot] == 0) {
+				return null;
+			}
+			activeCounts[slot]--;
+			groupActive--;
+			return groupActive == 0 ? finishGroup(tick) : null;
+		}
+
+		// marks the notes of the group still sounding as cut short, so that their note-offs
+		// are ignored when they come
+		private void cutGroup() {
+			for (int i = 0; i < numPitches; i++) {
+				int slot = slots[i];
+				if (activeGroups[slot] == group) {
+					pendingOffs[slot] += activeCounts[slot];
+					activeCounts[slot] = 0;
+				}
+			}
+		}
+
+		// produces the element for the notes of the group, ending at the given tick
+		private Playable finishGroup(long endTick) {
+			Playable p;
+			int d = (int) (endTick - onset);
+			if (numPitches == 1) {
+				p = note(pitches[0], velocity, d);
+			}
+			else {
+				int[] list = new int[numPitches];
+				System.arraycopy(pitches, 0, list, 0, numPitches);
+				p = new Chord(list, velocity, d);
+			}
+			startTick = onset;
+			lastEnd = endTick;
+			groupActive = 0;
+			numPitches = 0;
+			return p;
+		}
+
+		private Note note(int p, int v, int d) {
+			return pooling ? Note.of(p, v, d) : new Note(p, v, d);
+		}
+
+		private int readByte() throws InvalidMidiDataException {
+			if (pos >= end) {
+				throw new InvalidMidiDataException("track chunk ends in the middle of an event");
+			}
+			return data.get(pos++) & 0xFF;
+		}
+
+		private long readVarInt() throws InvalidMidiDataException {
+			long value = 0;
+			int b;
+			do {
+				b = readByte();
+				value = (value << 7) | (b & 0x7F);
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		// skips over the given number of bytes, returning the position of the first one
+		private int skip(int length) throws InvalidMidiDataException {
+			if (length < 0 || length > end - pos) {
+				throw new InvalidMidiDataException("track chunk ends in the middle of an event");
+			}
+			int start = pos;
+			pos += length;
+			return start;
+		}
+
+		// the microseconds per quarter note of a tempo change, as an unsigned big-endian value
+		private int readTempo(int start, int length) {
+			long mpq = 0;
+			for (int i = 0; i < length; i++) {
+				mpq = (mpq << 8) | (data.get(start + i) & 0xFF);
+			}
+			return (int) Math.max(1, Math.min(mpq, Integer.MAX_VALUE));
+		}
+
+	}
+
+	// pulls elements from a decoder one at a time, reading one element ahead
+	private static class TrackIterator implements Iterator<Playable> {
+
+		private TrackDecoder decoder;
+		private Playable next;
+
+		TrackIterator(TrackDecoder decoder) {
+			this.decoder = decoder;
+		}
+
+		public boolean hasNext() {
+			if (next == null && decoder != null) {
+				try {
+					next = decoder.next();
+				} catch (InvalidMidiDataException e) {
+					decoder = null;
+					throw new IllegalStateException(e.getMessage(), e);
+				}
+				if (next == null) decoder = null; // end of track
+			}
+			return next != null;
+		}
+
+		public Playable next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Playable p = next;
+			next = null;
+			return p;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
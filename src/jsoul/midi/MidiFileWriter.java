@@ -0,0 +1,226 @@
+package jsoul.midi;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Encodes jsoul Sequences directly as Standard MIDI Files. The Tracks are walked
+ * once to measure each track chunk and once to write it, so no javax.sound.midi
+ * objects are created and only a small fixed buffer is held in memory. The output
+ * is byte-for-byte the same as writing the result of Sequence.createMidiSequence()
+ * with MidiSystem.write.
+ * @author Andrew Goldin
+ */
+public class MidiFileWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private OutputStream out;
+	private WritableByteChannel channel;
+	private ByteBuffer buffer;
+
+	/**
+	 * Constructs a writer that writes to the given stream. The stream does not
+	 * need to be buffered.
+	 * @param out the stream to write to
+	 */
+	public MidiFileWriter(OutputStream out) {
+		this.out = out;
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructs a writer that writes to the given channel.
+	 * @param channel the channel to write to
+	 */
+	public MidiFileWriter(WritableByteChannel channel) {
+		this.channel = channel;
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes a jsoul Sequence as a MIDI file, and flushes the output. The file is
+	 * of type 0 if the sequence has exactly one track, and of type 1 otherwise.
+	 * @param s the Sequence to write
+	 * @throws IOException if the output cannot be written
+	 * @throws InvalidMidiDataException if the sequence contains values that cannot
+	 * be represented in MIDI, such as a pitch above 127
+	 */
+	public void write(Sequence s) throws IOException, InvalidMidiDataException {
+		int numTracks = s.getNumTracks();
+		writeBytes('M', 'T', 'h', 'd');
+		writeInt(6);
+		writeShort(numTracks == 1 ? 0 : 1);
+		writeShort(numTracks);
+		writeShort(s.getResolution());
+		ChannelMap channels = ChannelMap.allocate(s);
+		for (int i = 0; i < numTracks; i++) {
+			// measure the track first, since the chunk length precedes its events
+			TrackEncoder counter = new TrackEncoder(false);
+			s.render(i, channels, counter);
+			counter.endTrack();
+			writeBytes('M', 'T', 'r', 'k');
+			writeInt((int) counter.length);
+			TrackEncoder encoder = new TrackEncoder(true);
+			s.render(i, channels, encoder);
+			encoder.endTrack();
+		}
+		flush();
+	}
+
+	// writes the events of a track's elements on the given channel, followed by an end
+	// of track, as the continuation of a track chunk whose end of track was the given
+	// number of ticks after its last event. Used to append to existing files.
+	void writeContinuation(Track t, int channel, long delay)
+			throws IOException, InvalidMidiDataException {
+		TrackEncoder encoder = new TrackEncoder(true);
+		encoder.lastTick = -delay;
+		t.render(channel, 0, encoder);
+		encoder.endTrack();
+		flush();
+	}
+
+	/**
+	 * Writes any buffered bytes to the underlying stream or channel.
+	 * @throws IOException if the output cannot be written
+	 */
+	public void flush() throws IOException {
+		buffer.flip();
+		if (channel != null) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		else {
+			out.write(buffer.array(), 0, buffer.limit());
+			out.flush();
+		}
+		buffer.clear();
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) b);
+	}
+
+	private void writeBytes(int b0, int b1, int b2, int b3) throws IOException {
+		writeByte(b0);
+		writeByte(b1);
+		writeByte(b2);
+		writeByte(b3);
+	}
+
+	private void writeShort(int v) throws IOException {
+		writeByte(v >>> 8);
+		writeByte(v);
+	}
+
+	private void writeInt(int v) throws IOException {
+		writeBytes(v >>> 24, v >>> 16, v >>> 8, v);
+	}
+
+	// the number of bytes a variable-length quantity occupies
+	static int varIntLength(long value) {
+		int length = 1;
+		while ((value >>>= 7) > 0) {
+			length++;
+		}
+		return length;
+	}
+
+	private void writeVarInt(long value) throws IOException {
+		for (int shift = 7 * (varIntLength(value) - 1); shift > 0; shift -= 7) {
+			writeByte((int) ((value >>> shift) & 0x7F) | 0x80);
+		}
+		writeByte((int) (value & 0x7F));
+	}
+
+	// the number of data bytes following the status byte of a channel message
+	static int dataLength(int command) {
+		return command == ShortMessage.PROGRAM_CHANGE
+				|| command == ShortMessage.CHANNEL_PRESSURE ? 1 : 2;
+	}
+
+	// encodes the events of one track chunk, using running status between channel
+	// messages. When not writing, only the length of the chunk is counted.
+	private class TrackEncoder implements MidiEventSink {
+
+		private boolean writing;
+		private long length, lastTick;
+		private int runningStatus = -1;
+
+		TrackEncoder(boolean writing) {
+			this.writing = writing;
+		}
+
+		public void shortMessage(long tick, int command, int channel, int data1, int data2)
+				throws InvalidMidiDataException, IOException {
+			if (command < 0x80 || command > 0xE0 || (command & 0x0F) != 0) {
+				throw new InvalidMidiDataException("Invalid command: " + command);
+			}
+			if (channel < 0 || channel > 15) {
+				throw new InvalidMidiDataException("channel out of range: " + channel);
+			}
+			int dataLength = dataLength(command);
+			if (data1 < 0 || data1 > 127) {
+				throw new InvalidMidiDataException("data1 out of range: " + data1);
+			}
+			if (dataLength > 1 && (data2 < 0 || data2 > 127)) {
+				throw new InvalidMidiDataException("data2 out of range: " + data2);
+			}
+			int status = command | channel;
+			long delta = delta(tick);
+			length += varIntLength(delta) + dataLength;
+			if (writing) writeVarInt(delta);
+			if (status != runningStatus) {
+				runningStatus = status;
+				length++;
+				if (writing) writeByte(status);
+			}
+			if (writing) {
+				writeByte(data1);
+				if (dataLength > 1) writeByte(data2);
+			}
+		}
+
+		public void metaMessage(long tick, int type, byte[] data)
+				throws InvalidMidiDataException, IOException {
+			if (type < 0 || type > 127) {
+				throw new InvalidMidiDataException("Invalid meta event with type " + type);
+			}
+			long delta = delta(tick);
+			runningStatus = -1; // meta events cancel running status
+			length += varIntLength(delta) + 2 + varIntLength(data.length) + data.length;
+			if (writing) {
+				writeVarInt(delta);
+				writeByte(0xFF);
+				writeByte(type);
+				writeVarInt(data.length);
+				for (int i = 0; i < data.length; i++) {
+					writeByte(data[i]);
+				}
+			}
+		}
+
+		// adds the end of track meta event at the tick of the last event
+		void endTrack() throws InvalidMidiDataException, IOException {
+			metaMessage(lastTick, 47, new byte[0]);
+		}
+
+		// the time since the previous event, which can only move forward
+		private long delta(long tick) throws InvalidMidiDataException {
+			if (tick < lastTick) {
+				throw new InvalidMidiDataException("negative duration at tick " + lastTick);
+			}
+			long delta = tick - lastTick;
+			lastTick = tick;
+			return delta;
+		}
+
+	}
+
+}
@@ -41,6 +41,9 @@ public class Note implements Playable, Comparable<Note> {
 	public static final String[] KEYNAMES =
 		{ "C", "C#", "D", "Eb", "E", "F", "F#", "G", "G#", "A", "Bb", "B" };
 
+	// the number of half steps above C of each note letter, from A to G
+	private static final int[] LETTER_STEPS = { 9, 11, 0, 2, 4, 5, 7 };
+
 	private int pitch, velocity, duration;
 
 	/**
@@ -51,7 +54,9 @@ public class Note implements Playable, Comparable<Note> {
 	 * @param d the duration
 	 */
 	public Note(int p, int v, int d) {
-		setNote(p, v, d);
+		pitch = p;
+		velocity = v;
+		duration = d;
 	}
 
 	/**
@@ -63,14 +68,28 @@ public class Note implements Playable, Comparable<Note> {
 	 * @param d the duration
 	 */
 	public Note(String p, int v, int d) {
-		setNote(stringToPitch(p), v, d);
+		this(stringToPitch(p), v, d);
 	}
 
 	/**
 	 * Default constructor: Creates middle C, mezzoforte, whole note.
 	 */
 	public Note() {
-		setNote(60, Dynamics.MEZZOFORTE, WHOLE);
+		this(60, Dynamics.MEZZOFORTE, WHOLE);
+	}
+	
+	/**
+	 * Returns a shared, read-only note with the given pitch, velocity, and duration.
+	 * Notes are taken from the NotePool, so repeated calls with the same values usually
+	 * return the same object, which saves memory when the same notes occur many times.
+	 * The note cannot be changed; transposing a Track that holds it replaces it.
+	 * @param p the pitch (0-127)
+	 * @param v the velocity (0-127)
+	 * @param d the duration in ticks
+	 * @return the pooled note
+	 */
+	public static ImmutableNote of(int p, int v, int d) {
+		return NotePool.get(p, v, d);
 	}
 	
 	/**
@@ -92,9 +111,7 @@ public class Note implements Playable, Comparable<Note> {
 	 * @param d the duration value
 	 */
 	public void setNote(String p, int v, int d) {
-		pitch = stringToPitch(p);
-		velocity = v;
-		duration = d;
+		setNote(stringToPitch(p), v, d);
 	}
 
 	/**
@@ -110,7 +127,7 @@ public class Note implements Playable, Comparable<Note> {
 	 * @param p the pitch as a String (e.g. "F#5")
 	 */
 	public void setPitch(String p) {
-		pitch = stringToPitch(p);
+		setPitch(stringToPitch(p));
 	}
 	
 	/**
@@ -120,8 +137,9 @@ public class Note implements Playable, Comparable<Note> {
 	 * @param steps the number of steps (positive or negative) to transpose the note
 	 */
 	public void transpose(int steps) {
-		if (pitch + steps >= 0 && pitch + steps <= 127) {
-			pitch += steps;
+		int p = getPitch();
+		if (p + steps >= 0 && p + steps <= 127) {
+			setPitch(p + steps);
 		}
 	}
 
@@ -138,7 +156,7 @@ public class Note implements Playable, Comparable<Note> {
 	 * @return the pitch as a string
 	 */
 	public String getPitchString() {
-		return pitchToString(pitch);
+		return pitchToString(getPitch());
 	}
 
 	/**
@@ -185,48 +203,76 @@ public class Note implements Playable, Comparable<Note> {
 
 	/**
 	 * Converts a String representation of a pitch to an int. For example,
-	 * stringToPitch("C4") will return 60.
+	 * stringToPitch("C4") will return 60. See parsePitch for the accepted format.
 	 * @param s the pitch String representation
 	 * @return the pitch midi value (0-127)
+	 * @throws IllegalArgumentException if the String is not a pitch, or the pitch is out of range
 	 */
 	public static int stringToPitch(String s) {
-		int pitch = 0, base = 0, multiplier = 0;
-		String note = "";
-		if (s.endsWith("-1")) {
-			multiplier = 0;
-			note = s.substring(0, s.length() - 2);
+		return parsePitch(s, 0, s.length());
+	}
+
+	/**
+	 * Parses a pitch from part of a sequence of characters, in a single pass and without
+	 * creating any objects. A pitch is a note letter from A to G, followed by any number
+	 * of accidentals ('#' for a sharp, 'x' for a double sharp, 'b' for a flat), followed
+	 * by an octave number from -1 upwards, where octave 4 starts at middle C. For example,
+	 * "C4" is 60, "Eb5" is 75, "F##3" is 55, "Bbb-1" is 9, and "B#4" is 72.
+	 * @param s the characters to parse
+	 * @param start the index of the first character of the pitch
+	 * @param end the index after the last character of the pitch
+	 * @return the pitch midi value (0-127)
+	 * @throws IllegalArgumentException if the characters are not a pitch, or the pitch is out of range
+	 */
+	public static int parsePitch(CharSequence s, int start, int end) {
+		int i = start;
+		if (i >= end) {
+			throw new IllegalArgumentException("Empty pitch");
 		}
-		else {
-			multiplier = Character.getNumericValue(s.charAt(s.length() - 1)) + 1;
-			note = s.substring(0, s.length() - 1);
+		char letter = s.charAt(i++);
+		int base = letter >= 'A' && letter <= 'G' ? LETTER_STEPS[letter - 'A']
+				: letter >= 'a' && letter <= 'g' ? LETTER_STEPS[letter - 'a'] : -1;
+		if (base < 0) {
+			throw badPitch(s, start, end);
 		}
-		if (note.equals("C") || note.equals("B#")) base = 0;
-		else if (note.equals("C#") || note.equals("Db")) base = 1;
-		else if (note.equals("D")) base = 2;
-		else if (note.equals("D#") || note.equals("Eb")) base = 3;
-		else if (note.equals("E") || note.equals("Fb")) base = 4;
-		else if (note.equals("F") || note.equals("Eb")) base = 5;
-		else if (note.equals("F#") || note.equals("Gb")) base = 6;
-		else if (note.equals("G")) base = 7;
-		else if (note.equals("G#") || note.equals("Ab")) base = 8;
-		else if (note.equals("A")) base = 9;
-		else if (note.equals("A#") || note.equals("Bb")) base = 10;
-		else if (note.equals("B") || note.equals("Cb")) base = 11;
-		pitch = base + 12 * multiplier;
-		if (pitch > 127) {
-			System.err.println("Error: (Note) pitch out of range");
-			System.exit(0);
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c == '#') base++;
+			else if (c == 'b') base--;
+			else if (c == 'x') base += 2;
+			else break;
+		}
+		boolean negative = i < end && s.charAt(i) == '-';
+		if (negative) i++;
+		if (i >= end) {
+			throw badPitch(s, start, end);
+		}
+		int octave = 0;
+		for (; i < end; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || octave > 10) {
+				throw badPitch(s, start, end);
+			}
+			octave = octave * 10 + digit;
+		}
+		int pitch = base + 12 * ((negative ? -octave : octave) + 1);
+		if (pitch < 0 || pitch > 127) {
+			throw new IllegalArgumentException("Pitch out of range: " + s.subSequence(start, end));
 		}
 		return pitch;
 	}
 
+	private static IllegalArgumentException badPitch(CharSequence s, int start, int end) {
+		return new IllegalArgumentException("Not a pitch: \"" + s.subSequence(start, end) + "\"");
+	}
+
 	/**
 	 * Returns a string representation of the Note, giving pitch, velocity, and duration.
 	 * @return the note's String representation
 	 */
 	public String toString() {
-		return "NOTE: Pitch = " + pitchToString(pitch) + ", Velocity = "
-				+ velocity + ", Duration = " + duration;
+		return "NOTE: Pitch = " + pitchToString(getPitch()) + ", Velocity = "
+				+ getVelocity() + ", Duration = " + getDuration();
 	}
 
 	/**
@@ -0,0 +1,90 @@
+package jsoul.midi;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A shared cache of ImmutableNotes, used by Note.of so that notes with the same pitch,
+ * velocity and duration are represented by one object. Each note is looked up by its
+ * pitch and velocity, packed into 7 bits each, together with its duration.
+ * <p>
+ * The pool has a fixed number of slots and a note is stored in the slot its values
+ * hash to, replacing whatever was there, so the pool never grows however many
+ * different notes are requested. Lookups take no locks and create no objects when
+ * the note is found. The counts of hits and misses show how well it is working.
+ * @author Andrew Goldin
+ */
+public final class NotePool {
+
+	private static final int SLOT_BITS = 16, SLOTS = 1 << SLOT_BITS;
+
+	private static final AtomicReferenceArray<ImmutableNote> slots =
+			new AtomicReferenceArray<ImmutableNote>(SLOTS);
+	private static final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+	private NotePool() {
+	}
+
+	// returns the pooled note with the given values, adding it if it is not there
+	static ImmutableNote get(int p, int v, int d) {
+		if ((p & ~0x7F) != 0 || (v & ~0x7F) != 0 || d < 0) {
+			misses.increment(); // cannot be packed, so is never pooled
+			return new ImmutableNote(p, v, d);
+		}
+		long key = ((long) d << 14) | (v << 7) | p;
+		// multiplicative hashing, taking the well mixed top bits of the product
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - SLOT_BITS));
+		ImmutableNote n = slots.get(slot);
+		if (n != null && n.getPitch() == p && n.getVelocity() == v && n.getDuration() == d) {
+			hits.increment();
+			return n;
+		}
+		misses.increment();
+		n = new ImmutableNote(p, v, d);
+		slots.set(slot, n);
+		return n;
+	}
+
+	/**
+	 * Returns the number of times Note.of found the note already in the pool.
+	 * @return the number of hits
+	 */
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of times Note.of had to create a new note.
+	 * @return the number of misses
+	 */
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of Note.of calls that found the note already in the pool.
+	 * @return the hit rate (0 to 1), or 0 if Note.of has not been called
+	 */
+	public static double getHitRate() {
+		long h = hits.sum(), total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	/**
+	 * Resets the hit and miss counts to 0.
+	 */
+	public static void resetStatistics() {
+		hits.reset();
+		misses.reset();
+	}
+
+	/**
+	 * Empties the pool, so that the notes in it can be garbage collected once nothing
+	 * else refers to them.
+	 */
+	public static void clear() {
+		for (int i = 0; i < SLOTS; i++) {
+			slots.set(i, null);
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+package jsoul.midi;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A compact Track which stores its notes and chords in parallel primitive arrays
+ * rather than as individual Note and Chord objects. Each element has a velocity
+ * byte and a duration, and its pitches are kept as bytes in a single pool shared by
+ * the whole track. Transposing and rendering the track are simple loops over these
+ * arrays.
+ * <p>
+ * Notes and Chords are copied into the track when added, so changing them
+ * afterwards does not affect the track. The Notes and Chords returned by
+ * getElement and getElements are views that read and write the track's arrays
+ * directly; they remain valid until an element is removed or the track is cleared.
+ * Pitches and velocities must be in the range 0-127.
+ * @author Andrew Goldin
+ */
+public class PackedTrack extends Track {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int size;
+	private byte[] velocities;
+	private int[] durations;
+	private boolean[] chords;
+	// the pitches of element i are pitches[offsets[i]] up to pitches[offsets[i + 1]]
+	private int[] offsets;
+	private byte[] pitches;
+
+	/**
+	 * Default constructor: An empty piano track.
+	 */
+	public PackedTrack() {
+		super();
+		velocities = new byte[INITIAL_CAPACITY];
+		durations = new int[INITIAL_CAPACITY];
+		chords = new boolean[INITIAL_CAPACITY];
+		offsets = new int[INITIAL_CAPACITY + 1];
+		pitches = new byte[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Creates a new packed track with the given sequence of Playables. The playables can be
+	 * Notes, Chords, or other Tracks, and are copied into the track in the order provided.
+	 * @param p the list of Playables
+	 */
+	public PackedTrack(Playable... p) {
+		this();
+		for (int i = 0; i < p.length; i++) {
+			add(p[i]);
+		}
+	}
+
+	/**
+	 * Adds a copy of a Playable to the end of the track. Providing a Sequence will do nothing.
+	 * @param p the playable to add (can only be a Note, Chord, or Track)
+	 */
+	public void add(Playable p) {
+		if (p instanceof Note) {
+			Note n = (Note) p;
+			ensureCapacity(size + 1, offsets[size] + 1);
+			pitches[offsets[size]] = checkRange(n.getPitch(), "pitch");
+			append(false, 1, n.getVelocity(), n.getDuration());
+		}
+		else if (p instanceof Chord) {
+			Chord c = (Chord) p;
+			int numPitches = c.getSize();
+			ensureCapacity(size + 1, offsets[size] + numPitches);
+			for (int i = 0; i < numPitches; i++) {
+				pitches[offsets[size] + i] = checkRange(c.getPitch(i), "pitch");
+			}
+			append(true, numPitches, c.getVelocity(), c.getDuration());
+		}
+		else if (p instanceof PackedTrack) {
+			PackedTrack t = (PackedTrack) p;
+			appendRange(t, 0, t.size);
+		}
+		else if (p instanceof Track) {
+			Track t = (Track) p;
+			for (int i = 0; i < t.getNumElements(); i++) {
+				add(t.getElement(i));
+			}
+		}
+	}
+
+	// copies the elements of t from index from up to to onto the end of this track
+	private void appendRange(PackedTrack t, int from, int to) {
+		int n = to - from, poolStart = t.offsets[from], poolSize = t.offsets[to] - poolStart;
+		ensureCapacity(size + n, offsets[size] + poolSize);
+		System.arraycopy(t.velocities, from, velocities, size, n);
+		System.arraycopy(t.durations, from, durations, size, n);
+		System.arraycopy(t.chords, from, chords, size, n);
+		System.arraycopy(t.pitches, poolStart, pitches, offsets[size], poolSize);
+		int shift = offsets[size] - poolStart;
+		for (int i = 1; i <= n; i++) {
+			offsets[size + i] = t.offsets[from + i] + shift;
+		}
+		size += n;
+	}
+
+	/**
+	 * Set the Note or Chord at a certain location in the track, by copying it. If anything
+	 * other than a Note or a Chord is provided, nothing will happen.
+	 * @param index the location of the Note or Chord to set.
+	 * @param p the new Playable. Can only be a Note or a Chord.
+	 */
+	public void set(int index, Playable p) {
+		checkIndex(index);
+		if (p instanceof Note) {
+			Note n = (Note) p;
+			byte pitch = checkRange(n.getPitch(), "pitch");
+			byte velocity = checkRange(n.getVelocity(), "velocity");
+			resizePitches(index, 1);
+			pitches[offsets[index]] = pitch;
+			velocities[index] = velocity;
+			durations[index] = n.getDuration();
+			chords[index] = false;
+		}
+		else if (p instanceof Chord) {
+			Chord c = (Chord) p;
+			int[] chordPitches = c.getPitches();
+			for (int i = 0; i < chordPitches.length; i++) {
+				checkRange(chordPitches[i], "pitch");
+			}
+			byte velocity = checkRange(c.getVelocity(), "velocity");
+			setPitches(index, chordPitches);
+			velocities[index] = velocity;
+			durations[index] = c.getDuration();
+			chords[index] = true;
+		}
+		invalidateFrom(index);
+	}
+
+	/**
+	 * Removes the Note or Chord at the specified location in the track.
+	 * @param index the location of the Note or Chord to remove.
+	 */
+	public void remove(int index) {
+		checkIndex(index);
+		resizePitches(index, 0);
+		int moved = size - index - 1;
+		System.arraycopy(velocities, index + 1, velocities, index, moved);
+		System.arraycopy(durations, index + 1, durations, index, moved);
+		System.arraycopy(chords, index + 1, chords, index, moved);
+		System.arraycopy(offsets, index + 1, offsets, index, moved + 1);
+		size--;
+		invalidateFrom(index);
+	}
+
+	/**
+	 * Clears the track, removing all elements and resets the instrument to default piano.
+	 */
+	public void clear() {
+		super.clear();
+		size = 0;
+		offsets[0] = 0;
+	}
+
+	/**
+	 * Gets the number of elements (notes and chords) in the track.
+	 * @return the number of notes and chords.
+	 */
+	public int getNumElements() {
+		return size;
+	}
+
+	/**
+	 * Returns views of all Playables (Notes and Chords) in the track.
+	 * @return the list of Playables.
+	 */
+	public Playable[] getElements() {
+		Playable[] elements = new Playable[size];
+		for (int i = 0; i < size; i++) {
+			elements[i] = view(i);
+		}
+		return elements;
+	}
+
+	/**
+	 * Gets a view of the Playable (note or chord) at the given position in the track.
+	 * @param n the position of the Playable
+	 * @return the Playable at position n
+	 */
+	public Playable getElement(int n) {
+		checkIndex(n);
+		return view(n);
+	}
+
+	/**
+	 * Returns a regular Track holding copies of the notes and chords in this track,
+	 * with the same instrument.
+	 * @return the unpacked Track
+	 */
+	public Track toTrack() {
+		Track t = new Track();
+		t.setInstrument(getInstrument().getInstrumentNumber());
+		t.add(this);
+		return t;
+	}
+
+	/**
+	 * Returns a deep copy of the track, which is also packed. The arrays are copied in
+	 * bulk, without creating any Notes or Chords.
+	 * @return a copy of the track
+	 */
+	public PackedTrack copy() {
+		return (PackedTrack) super.copy();
+	}
+
+	/**
+	 * Returns a new packed track with copies of the elements that start at or after
+	 * startTick and before endTick, and the same instrument. See Track.slice.
+	 * @param startTick the start of the range in midi ticks
+	 * @param endTick the end of the range in midi ticks
+	 * @return the new track
+	 */
+	public PackedTrack slice(long startTick, long endTick) {
+		return (PackedTrack) super.slice(startTick, endTick);
+	}
+
+	// a new packed piano track holding the elements from index from up to to, copied in bulk
+	PackedTrack copyRange(int from, int to) {
+		PackedTrack t = new PackedTrack();
+		t.appendRange(this, from, to);
+		return t;
+	}
+
+	int durationOf(int i) {
+		return durations[i];
+	}
+
+	// packed elements are never shared, so each one is set in place
+	void setDurationOf(int i, int d, Set<Playable> done) {
+		durations[i] = d;
+	}
+
+	/**
+	 * Transposes all notes and chords in the track. As with Notes and Chords, an element
+	 * which would leave the 0-127 range is not affected.
+	 * @param steps the number of steps (positive or negative) to tranpose the track
+	 */
+	public void transpose(int steps) {
+		for (int i = 0; i < size; i++) {
+			transpose(i, steps);
+		}
+	}
+
+	// finds the range of the whole pitch pool in one loop over the array
+	void checkTranspose(int steps, TransposePolicy policy) {
+		if (policy != TransposePolicy.REJECT) return;
+		int lowest = Integer.MAX_VALUE, highest = Integer.MIN_VALUE;
+		for (int j = 0, end = offsets[size]; j < end; j++) {
+			lowest = Math.min(lowest, pitches[j]);
+			highest = Math.max(highest, pitches[j]);
+		}
+		policy.check(lowest, highest, steps);
+	}
+
+	// shifts the whole pitch pool in one loop, simple enough for the JIT to vectorize
+	void applyTranspose(int steps, TransposePolicy policy, Set<Playable> done) {
+		if (!done.add(this)) return; // the same track held twice by a sequence
+		int end = offsets[size];
+		if (policy == TransposePolicy.REJECT) {
+			for (int j = 0; j < end; j++) {
+				assert pitches[j] + steps >= 0 && pitches[j] + steps <= 127;
+				pitches[j] += steps;
+			}
+		}
+		else if (policy == TransposePolicy.CLIP) {
+			for (int j = 0; j < end; j++) {
+				pitches[j] = (byte) Math.max(0, Math.min(127, pitches[j] + steps));
+			}
+		}
+		else {
+			for (int j = 0; j < end; j++) {
+				pitches[j] = (byte) policy.shift(pitches[j], steps);
+			}
+			// wrapping can change the order of the pitches of a chord
+			for (int i = 0; i < size; i++) {
+				if (chords[i]) Arrays.sort(pitches, offsets[i], offsets[i + 1]);
+			}
+		}
+	}
+
+	// renders the notes and chords straight from the packed arrays
+	long render(int channel, long tick, MidiEventSink sink)
+			throws InvalidMidiDataException, IOException {
+		for (int i = 0; i < size; i++) {
+			int start = offsets[i], end = offsets[i + 1];
+			for (int j = start; j < end; j++) {
+				sink.shortMessage(tick, ShortMessage.NOTE_ON, channel, pitches[j], velocities[i]);
+			}
+			tick += durations[i];
+			for (int j = start; j < end; j++) {
+				sink.shortMessage(tick, ShortMessage.NOTE_OFF, channel, pitches[j], 0);
+			}
+		}
+		return tick;
+	}
+
+	// returns a detached Note or Chord with the values of the given element
+	Playable copyOf(int i) {
+		if (chords[i]) {
+			return new Chord(pitchesOf(i), velocities[i], durations[i]);
+		}
+		return new Note(pitches[offsets[i]], velocities[i], durations[i]);
+	}
+
+	private Playable view(int i) {
+		if (chords[i]) {
+			return new ChordView(i);
+		}
+		return new NoteView(i);
+	}
+
+	// appends an element whose pitches have already been written to the end of the pool
+	private void append(boolean chord, int numPitches, int velocity, int duration) {
+		velocities[size] = checkRange(velocity, "velocity");
+		durations[size] = duration;
+		chords[size] = chord;
+		offsets[size + 1] = offsets[size] + numPitches;
+		size++;
+	}
+
+	// transposes one element, unless doing so would move any of its pitches out of range
+	private void transpose(int i, int steps) {
+		int start = offsets[i], end = offsets[i + 1];
+		if (start == end) return;
+		// chord pitches are kept sorted, so the range is given by the first and last
+		if (pitches[start] + steps >= 0 && pitches[end - 1] + steps <= 127) {
+			for (int j = start; j < end; j++) {
+				pitches[j] += steps;
+			}
+		}
+	}
+
+	private int[] pitchesOf(int i) {
+		int[] p = new int[offsets[i + 1] - offsets[i]];
+		for (int j = 0; j < p.length; j++) {
+			p[j] = pitches[offsets[i] + j];
+		}
+		return p;
+	}
+
+	// replaces the pitches of an element, which are stored sorted
+	private void setPitches(int i, int[] p) {
+		int[] sorted = p.clone();
+		Arrays.sort(sorted);
+		resizePitches(i, sorted.length);
+		for (int j = 0; j < sorted.length; j++) {
+			pitches[offsets[i] + j] = (byte) sorted[j];
+		}
+	}
+
+	// makes room for the given number of pitches for element i, moving the pitches of the
+	// following elements along the pool
+	private void resizePitches(int i, int numPitches) {
+		int shift = numPitches - (offsets[i + 1] - offsets[i]);
+		if (shift == 0) return;
+		ensureCapacity(size, offsets[size] + shift);
+		System.arraycopy(pitches, offsets[i + 1], pitches, offsets[i + 1] + shift,
+				offsets[size] - offsets[i + 1]);
+		for (int j = i + 1; j <= size; j++) {
+			offsets[j] += shift;
+		}
+	}
+
+	private void ensureCapacity(int numElements, int numPitches) {
+		if (numElements > velocities.length) {
+			int capacity = Math.max(numElements, velocities.length * 2);
+			velocities = Arrays.copyOf(velocities, capacity);
+			durations = Arrays.copyOf(durations, capacity);
+			chords = Arrays.copyOf(chords, capacity);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+		}
+		if (numPitches > pitches.length) {
+			pitches = Arrays.copyOf(pitches, Math.max(numPitches, pitches.length * 2));
+		}
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+	private static byte checkRange(int value, String name) {
+		if (value < 0 || value > 127) {
+			throw new IllegalArgumentException(name + " out of range: " + value);
+		}
+		return (byte) value;
+	}
+
+	// a Note which reads and writes an element of the track
+	private class NoteView extends Note {
+
+		private int index;
+
+		NoteView(int index) {
+			super(0, 0, 0);
+			this.index = index;
+		}
+
+		public void setNote(int p, int v, int d) {
+			byte pitch = checkRange(p, "pitch");
+			velocities[index] = checkRange(v, "velocity");
+			pitches[offsets[index]] = pitch;
+			durations[index] = d;
+			invalidateFrom(index);
+		}
+
+		public void setPitch(int p) {
+			pitches[offsets[index]] = checkRange(p, "pitch");
+		}
+
+		public int getPitch() {
+			return pitches[offsets[index]];
+		}
+
+		public void setVelocity(int v) {
+			velocities[index] = checkRange(v, "velocity");
+		}
+
+		public int getVelocity() {
+			return velocities[index];
+		}
+
+		public void setDuration(int d) {
+			durations[index] = d;
+			invalidateFrom(index);
+		}
+
+		public int getDuration() {
+			return durations[index];
+		}
+
+	}
+
+	// a Chord which reads and writes an element of the track. Its pitches are
+	// copied out of the track, so changing the returned array has no effect.
+	private class ChordView extends Chord {
+
+		private int index;
+
+		ChordView(int index) {
+			super(new int[0], 0, 0);
+			this.index = index;
+		}
+
+		public int getSize() {
+			return offsets[index + 1] - offsets[index];
+		}
+
+		public void setPitches(int[] p) {
+			for (int i = 0; i < p.length; i++) {
+				checkRange(p[i], "pitch");
+			}
+			PackedTrack.this.setPitches(index, p);
+		}
+
+		public int[] getPitches() {
+			return pitchesOf(index);
+		}
+
+		public int getPitch(int i) {
+			if (i < 0 || i >= getSize()) {
+				throw new ArrayIndexOutOfBoundsException(i);
+			}
+			return pitches[offsets[index] + i];
+		}
+
+		// a chord without pitches has no highest or lowest, and throws as a Chord does
+		// rather than reading the pitch of a neighbouring element
+		public int getHighestPitch() {
+			if (offsets[index] == offsets[index + 1]) {
+				throw new ArrayIndexOutOfBoundsException(-1);
+			}
+			return pitches[offsets[index + 1] - 1];
+		}
+
+		public int getLowestPitch() {
+			if (offsets[index] == offsets[index + 1]) {
+				throw new ArrayIndexOutOfBoundsException(0);
+			}
+			return pitches[offsets[index]];
+		}
+
+		public void transpose(int steps) {
+			PackedTrack.this.transpose(index, steps);
+		}
+
+		public void setVelocity(int v) {
+			velocities[index] = checkRange(v, "velocity");
+		}
+
+		public int getVelocity() {
+			return velocities[index];
+		}
+
+		public void setDuration(int d) {
+			durations[index] = d;
+			invalidateFrom(index);
+		}
+
+		public int getDuration() {
+			return durations[index];
+		}
+
+	}
+
+}
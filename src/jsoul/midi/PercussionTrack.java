@@ -0,0 +1,131 @@
+package jsoul.midi;
+
+/**
+ * Represents a MIDI percussion track. Percussion tracks are always played on MIDI channel
+ * 10, where each pitch is a different drum or other percussion sound rather than a note,
+ * following the General MIDI percussion key map. Contains static fields for the 47
+ * standard percussion keys, which can be used as the pitches of Notes and Chords. The
+ * instrument of a percussion track is ignored.
+ * @author Andrew Goldin
+ */
+public class PercussionTrack extends Track {
+
+	public static final int ACOUSTIC_BASS_DRUM = 35,
+			BASS_DRUM = 36,
+			SIDE_STICK = 37,
+			ACOUSTIC_SNARE = 38,
+			HAND_CLAP = 39,
+			ELECTRIC_SNARE = 40,
+			LOW_FLOOR_TOM = 41,
+			CLOSED_HI_HAT = 42,
+			HIGH_FLOOR_TOM = 43,
+			PEDAL_HI_HAT = 44,
+			LOW_TOM = 45,
+			OPEN_HI_HAT = 46,
+			LOW_MID_TOM = 47,
+			HI_MID_TOM = 48,
+			CRASH_CYMBAL_1 = 49,
+			HIGH_TOM = 50,
+			RIDE_CYMBAL_1 = 51,
+			CHINESE_CYMBAL = 52,
+			RIDE_BELL = 53,
+			TAMBOURINE = 54,
+			SPLASH_CYMBAL = 55,
+			COWBELL = 56,
+			CRASH_CYMBAL_2 = 57,
+			VIBRASLAP = 58,
+			RIDE_CYMBAL_2 = 59,
+			HI_BONGO = 60,
+			LOW_BONGO = 61,
+			MUTE_HI_CONGA = 62,
+			OPEN_HI_CONGA = 63,
+			LOW_CONGA = 64,
+			HIGH_TIMBALE = 65,
+			LOW_TIMBALE = 66,
+			HIGH_AGOGO = 67,
+			LOW_AGOGO = 68,
+			CABASA = 69,
+			MARACAS = 70,
+			SHORT_WHISTLE = 71,
+			LONG_WHISTLE = 72,
+			SHORT_GUIRO = 73,
+			LONG_GUIRO = 74,
+			CLAVES = 75,
+			HI_WOOD_BLOCK = 76,
+			LOW_WOOD_BLOCK = 77,
+			MUTE_CUICA = 78,
+			OPEN_CUICA = 79,
+			MUTE_TRIANGLE = 80,
+			OPEN_TRIANGLE = 81;
+
+	// the General MIDI percussion names, starting at ACOUSTIC_BASS_DRUM
+	private static final String[] GM_NAMES = {
+		"Acoustic Bass Drum", "Bass Drum 1", "Side Stick", "Acoustic Snare",
+		"Hand Clap", "Electric Snare", "Low Floor Tom", "Closed Hi-Hat",
+		"High Floor Tom", "Pedal Hi-Hat", "Low Tom", "Open Hi-Hat",
+		"Low-Mid Tom", "Hi-Mid Tom", "Crash Cymbal 1", "High Tom",
+		"Ride Cymbal 1", "Chinese Cymbal", "Ride Bell", "Tambourine",
+		"Splash Cymbal", "Cowbell", "Crash Cymbal 2", "Vibraslap",
+		"Ride Cymbal 2", "Hi Bongo", "Low Bongo", "Mute Hi Conga",
+		"Open Hi Conga", "Low Conga", "High Timbale", "Low Timbale",
+		"High Agogo", "Low Agogo", "Cabasa", "Maracas",
+		"Short Whistle", "Long Whistle", "Short Guiro", "Long Guiro",
+		"Claves", "Hi Wood Block", "Low Wood Block", "Mute Cuica",
+		"Open Cuica", "Mute Triangle", "Open Triangle"
+	};
+
+	/**
+	 * Default constructor: An empty percussion track.
+	 */
+	public PercussionTrack() {
+		super();
+	}
+
+	/**
+	 * Creates a new percussion track with the given sequence of Playables, as with the
+	 * corresponding Track constructor. The pitches of the Notes and Chords select the
+	 * percussion sounds.
+	 * @param p the list of Playables
+	 */
+	public PercussionTrack(Playable... p) {
+		super(p);
+	}
+
+	/**
+	 * Returns the name of a percussion key.
+	 * @param key the percussion key (35-81)
+	 * @return the name of the percussion sound, or an empty String if the key is out of range
+	 */
+	public static String getName(int key) {
+		if (key < ACOUSTIC_BASS_DRUM || key > OPEN_TRIANGLE) return "";
+		return GM_NAMES[key - ACOUSTIC_BASS_DRUM];
+	}
+
+	/**
+	 * Returns a deep copy of the percussion track, as with Track.copy.
+	 * @return a copy of the track
+	 */
+	public PercussionTrack copy() {
+		return (PercussionTrack) super.copy();
+	}
+
+	/**
+	 * Returns a new percussion track holding the elements that start at or after
+	 * startTick and before endTick, as with Track.slice.
+	 * @param startTick the first tick of the slice
+	 * @param endTick the tick after the end of the slice
+	 * @return the slice
+	 */
+	public PercussionTrack slice(long startTick, long endTick) {
+		return (PercussionTrack) super.slice(startTick, endTick);
+	}
+
+	Track newTrack() {
+		return new PercussionTrack();
+	}
+
+	String header() {
+		return "PERCUSSION TRACK: Elements = " + getNumElements();
+	}
+
+}
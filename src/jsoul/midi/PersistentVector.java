@@ -0,0 +1,185 @@
+package jsoul.midi;
+import java.util.Arrays;
+
+/**
+ * An immutable list stored as a tree of small arrays, 32 children per node. Changing
+ * an element copies only the nodes on the path from the root to it, and appending
+ * copies only the path to the last element, so the new list shares all of the other
+ * nodes with the old one. Lookups and updates take O(log32 n) steps.
+ * @author Andrew Goldin
+ */
+final class PersistentVector<E> {
+
+	private static final int BITS = 5, WIDTH = 1 << BITS, MASK = WIDTH - 1;
+
+	/**
+	 * Maps elements for PersistentVector.map.
+	 */
+	interface Mapper<E> {
+
+		/**
+		 * Returns the element to store in place of e, or e itself to leave it unchanged.
+		 * @param e the current element
+		 * @return the new element
+		 */
+		E map(E e);
+
+	}
+
+	private final int size;
+	// the number of index bits below the root; leaves hold elements and have shift 0
+	private final int shift;
+	private final Object[] root;
+
+	private PersistentVector(int size, int shift, Object[] root) {
+		this.size = size;
+		this.shift = shift;
+		this.root = root;
+	}
+
+	/**
+	 * Returns an empty vector.
+	 * @return the empty vector
+	 */
+	static <E> PersistentVector<E> empty() {
+		return new PersistentVector<E>(0, 0, new Object[0]);
+	}
+
+	/**
+	 * Builds a vector of the first n items of the array, building each level of the
+	 * tree in one pass rather than appending the items one at a time.
+	 * @param items the items
+	 * @param n the number of items to use
+	 * @return the vector
+	 */
+	static <E> PersistentVector<E> of(Object[] items, int n) {
+		if (n == 0) return empty();
+		Object[] level = group(items, n);
+		int shift = 0;
+		while (level.length > 1) {
+			level = group(level, level.length);
+			shift += BITS;
+		}
+		return new PersistentVector<E>(n, shift, (Object[]) level[0]);
+	}
+
+	// splits the first n items into nodes of up to WIDTH items each
+	private static Object[] group(Object[] items, int n) {
+		Object[] nodes = new Object[(n + MASK) >>> BITS];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = Arrays.copyOfRange(items, i << BITS, Math.min(n, (i + 1) << BITS));
+		}
+		return nodes;
+	}
+
+	int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	E get(int i) {
+		checkIndex(i);
+		Object[] node = root;
+		for (int s = shift; s > 0; s -= BITS) {
+			node = (Object[]) node[(i >>> s) & MASK];
+		}
+		return (E) node[i & MASK];
+	}
+
+	/**
+	 * Returns a vector with the element at index i replaced.
+	 */
+	PersistentVector<E> set(int i, E e) {
+		checkIndex(i);
+		return new PersistentVector<E>(size, shift, set(root, shift, i, e));
+	}
+
+	private static Object[] set(Object[] node, int s, int i, Object e) {
+		Object[] copy = node.clone();
+		int child = (i >>> s) & MASK;
+		copy[child] = s == 0 ? e : set((Object[]) node[child], s - BITS, i, e);
+		return copy;
+	}
+
+	/**
+	 * Returns a vector with the element added to the end.
+	 */
+	PersistentVector<E> append(E e) {
+		if (size == 1L << (shift + BITS)) {
+			// the tree is full, so it grows a new root above the old one
+			Object[] newRoot = { root, path(shift, e) };
+			return new PersistentVector<E>(size + 1, shift + BITS, newRoot);
+		}
+		return new PersistentVector<E>(size + 1, shift, append(root, shift, size, e));
+	}
+
+	private static Object[] append(Object[] node, int s, int i, Object e) {
+		int child = (i >>> s) & MASK;
+		Object[] copy = Arrays.copyOf(node, Math.max(node.length, child + 1));
+		if (s == 0) copy[child] = e;
+		else if (child < node.length) copy[child] = append((Object[]) node[child], s - BITS, i, e);
+		else copy[child] = path(s - BITS, e);
+		return copy;
+	}
+
+	// a new branch holding only the given element, with its leaf at the bottom
+	private static Object[] path(int s, Object e) {
+		return s == 0 ? new Object[] { e } : new Object[] { path(s - BITS, e) };
+	}
+
+	/**
+	 * Returns a vector with the elements from index start up to end replaced by the
+	 * mapper. Nodes whose elements the mapper leaves unchanged are shared rather than
+	 * copied, and nodes outside the range are not visited.
+	 */
+	PersistentVector<E> map(int start, int end, Mapper<E> m) {
+		if (start < 0 || end > size || start > end) {
+			throw new IndexOutOfBoundsException("Range " + start + " to " + end + " of " + size);
+		}
+		Object[] newRoot = map(root, shift, 0, start, end, m);
+		return newRoot == root ? this : new PersistentVector<E>(size, shift, newRoot);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <E> Object[] map(Object[] node, int s, int offset, int start, int end, Mapper<E> m) {
+		Object[] copy = null;
+		long span = 1L << s;
+		for (int c = 0; c < node.length; c++) {
+			long childStart = offset + c * span;
+			if (childStart >= end) break;
+			if (childStart + span <= start) continue;
+			Object updated = s == 0 ? m.map((E) node[c])
+					: map((Object[]) node[c], s - BITS, (int) childStart, start, end, m);
+			if (updated != node[c]) {
+				if (copy == null) copy = node.clone();
+				copy[c] = updated;
+			}
+		}
+		return copy != null ? copy : node;
+	}
+
+	/**
+	 * Copies the elements into the start of the array, a leaf at a time.
+	 */
+	void copyTo(Object[] dest) {
+		copyTo(root, shift, dest, 0);
+	}
+
+	private static int copyTo(Object[] node, int s, Object[] dest, int pos) {
+		if (s == 0) {
+			System.arraycopy(node, 0, dest, pos, node.length);
+			return pos + node.length;
+		}
+		for (int c = 0; c < node.length; c++) {
+			pos = copyTo((Object[]) node[c], s - BITS, dest, pos);
+		}
+		return pos;
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+	}
+
+}
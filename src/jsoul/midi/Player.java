@@ -1,19 +1,58 @@
 package jsoul.midi;
 import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
 import javax.sound.midi.*;
 
-// static class for playing midi files or sequences and writing midi information to midi files
 /**
- * A class which provides static methods to play Notes, Chords, Tracks, Sequences,
- * and MIDI files. Not advised for dynamic sound in a program, as there will
- * be a bit of latency between calling a "play" method and hearing the sound.
- * Additionally, if a play method is called in a program, the program will pause
- * until the playing has ceased.
+ * Plays Notes, Chords, Tracks, Sequences, and MIDI files. A Player keeps one
+ * Sequencer and Synthesizer open and plays everything it is given back to back, in
+ * the order given, without blocking the caller. Each call to enqueue returns a future
+ * which completes when that sequence has finished playing.
+ * <p>
+ * The static play methods use a shared Player, which releases its devices whenever it
+ * runs out of things to play, so that a program can exit once playing has ceased.
  * @author Andrew Goldin
  */
 public class Player {
 
-	private static Sequencer sequencer = null;
+	private static Player defaultPlayer = null;
+
+	private Receiver receiver;
+	private boolean closeWhenIdle;
+	private Sequencer sequencer;
+	private Synthesizer synthesizer;
+	private LinkedList<Entry> queue = new LinkedList<Entry>();
+	private Entry current;
+	private boolean paused;
+
+	/**
+	 * Constructs a player which plays through the default Synthesizer. The devices are
+	 * opened when the first sequence is queued, and stay open until close() is called.
+	 */
+	public Player() {
+	}
+
+	/**
+	 * Constructs a player which sends its events to the given receiver, such as an
+	 * external MIDI device, instead of the default Synthesizer.
+	 * @param r the receiver to play through
+	 */
+	public Player(Receiver r) {
+		receiver = r;
+	}
+
+	/**
+	 * Returns the shared player used by the static play methods.
+	 * @return the shared player
+	 */
+	public static synchronized Player getDefaultPlayer() {
+		if (defaultPlayer == null) {
+			defaultPlayer = new Player();
+			defaultPlayer.closeWhenIdle = true;
+		}
+		return defaultPlayer;
+	}
 
 	/**
 	 * Plays the given note.
@@ -40,11 +79,12 @@ public class Player {
 	}
 
 	/**
-	 * Plays the given Sequence.
+	 * Plays the given Sequence, after anything already playing has finished.
+	 * Returns without waiting for it to play.
 	 * @param s the Sequence to play
 	 */
 	public static void play(Sequence s) {
-		initSequencer(s.createMidiSequence(), s.getTempo());
+		report(getDefaultPlayer().enqueue(s), "Error: (play) cannot play sequence");
 	}
 
 	/**
@@ -56,57 +96,256 @@ public class Player {
 	}
 
 	/**
-	 * Plays the given MIDI file given the file path name.
+	 * Plays the given MIDI file given the file path name, after anything already
+	 * playing has finished. Returns without waiting for it to play.
 	 * @param fileName the name of the file to play
 	 */
 	public static void play(String fileName) {
+		report(getDefaultPlayer().enqueue(new MidiFile(fileName)),
+				"Error: (play) failure to play file " + fileName);
+	}
+
+	// prints an error if the sequence could not be queued
+	private static void report(CompletableFuture<Void> f, String message) {
+		if (f.isCompletedExceptionally()) {
+			System.err.println(message);
+		}
+	}
+
+	/**
+	 * Queues a Sequence to play once everything queued before it has finished.
+	 * @param s the Sequence to play
+	 * @return a future which completes when the sequence has finished playing, or
+	 * completes exceptionally if it cannot be played
+	 */
+	public CompletableFuture<Void> enqueue(Sequence s) {
+		javax.sound.midi.Sequence seq = s.createMidiSequence();
+		if (seq == null) {
+			return failed(new InvalidMidiDataException("cannot convert sequence"));
+		}
+		return enqueue(seq, s.getTempo());
+	}
+
+	/**
+	 * Queues a MIDI file to play once everything queued before it has finished.
+	 * @param m the MIDI file to play
+	 * @return a future which completes when the file has finished playing, or
+	 * completes exceptionally if it cannot be read or played
+	 */
+	public CompletableFuture<Void> enqueue(MidiFile m) {
 		try {
-			initSequencer(MidiSystem.getSequence(new File(fileName)), 0);
+			return enqueue(MidiSystem.getSequence(new File(m.getFileName())), 0);
 		} catch (InvalidMidiDataException e) {
-			System.err.println("Error: (play) failure to retrieve midi data from " + fileName);
-			//e.printStackTrace();
+			return failed(e);
 		} catch (IOException e) {
-			System.err.println("Error: (play) failure to read file " + fileName);
-			//e.printStackTrace();
+			return failed(e);
 		}
 	}
 
-	// starts the sequencer
-	private static void initSequencer(javax.sound.midi.Sequence s, float t) {
-		if (sequencer != null) {
-			// if the sequencer is already running, wait for it to stop
-			while (sequencer.isRunning()) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					System.err.println("Error: (play) failure waiting to play next sequence");
-					//e.printStackTrace();
-				}
+	/**
+	 * Queues a javax.sound.midi.Sequence to play once everything queued before it has
+	 * finished.
+	 * @param s the sequence to play
+	 * @param tempoBPM the tempo to play at, or 0 to use the tempo in the sequence
+	 * @return a future which completes when the sequence has finished playing, or
+	 * completes exceptionally if it cannot be played
+	 */
+	public synchronized CompletableFuture<Void> enqueue(javax.sound.midi.Sequence s, float tempoBPM) {
+		Entry e = new Entry(s, tempoBPM);
+		try {
+			open();
+			queue.add(e);
+			if (current == null) {
+				playNext();
+				if (current == null && closeWhenIdle) closeDevices();
 			}
+		} catch (MidiUnavailableException ex) {
+			e.done.completeExceptionally(ex);
 		}
-		try {
-			sequencer = MidiSystem.getSequencer();
-			sequencer.open();
-		} catch (MidiUnavailableException e) {
-			System.err.println("Error: (play) cannot get MIDI Sequencer");
+		return e.done;
+	}
+
+	/**
+	 * Pauses playback, keeping the current position and the queue.
+	 */
+	public synchronized void pause() {
+		if (current != null && !paused) {
+			paused = true;
+			sequencer.stop();
 		}
-		try {
-			sequencer.setSequence(s);
-		} catch (InvalidMidiDataException e) {
-			System.err.println("Error: (play) cannot set sequence for MIDI sequencer");
+	}
+
+	/**
+	 * Resumes playback after a pause.
+	 */
+	public synchronized void resume() {
+		if (current != null && paused) {
+			paused = false;
+			sequencer.start();
 		}
-		if (t > 0) {
-			sequencer.setTempoInBPM(t); // set tempo if specified
+	}
+
+	/**
+	 * Moves the current sequence to the given position.
+	 * @param tick the position in MIDI ticks
+	 */
+	public synchronized void seek(long tick) {
+		if (current != null) {
+			sequencer.setTickPosition(tick);
 		}
-		sequencer.addMetaEventListener(new MetaEventListener() {
+	}
+
+	/**
+	 * Returns the position in the current sequence, or 0 if nothing is playing.
+	 * @return the position in MIDI ticks
+	 */
+	public synchronized long getTickPosition() {
+		return current != null ? sequencer.getTickPosition() : 0;
+	}
+
+	/**
+	 * Returns whether a sequence is playing or paused.
+	 * @return true if a sequence is playing or paused
+	 */
+	public synchronized boolean isPlaying() {
+		return current != null;
+	}
+
+	/**
+	 * Returns whether playback is paused.
+	 * @return true if paused
+	 */
+	public synchronized boolean isPaused() {
+		return current != null && paused;
+	}
+
+	/**
+	 * Stops the current sequence and discards everything queued after it. Their futures
+	 * are cancelled. The devices stay open for further playing.
+	 */
+	public void stop() {
+		LinkedList<Entry> stopped = new LinkedList<Entry>();
+		synchronized (this) {
+			if (current != null) {
+				sequencer.stop();
+				stopped.add(current);
+				current = null;
+			}
+			stopped.addAll(queue);
+			queue.clear();
+			paused = false;
+			if (closeWhenIdle) closeDevices();
+		}
+		for (Entry e : stopped) {
+			e.done.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops playing and closes the Sequencer and Synthesizer. The player can still be
+	 * used afterwards, and will open them again when needed.
+	 */
+	public void close() {
+		stop();
+		synchronized (this) {
+			closeDevices();
+		}
+	}
+
+	// opens the sequencer and connects it to the synthesizer or receiver, if not already open
+	private void open() throws MidiUnavailableException {
+		if (sequencer != null) return;
+		final Sequencer seq = MidiSystem.getSequencer(false);
+		try {
+			seq.open();
+			Receiver r = receiver;
+			if (r == null) {
+				synthesizer = MidiSystem.getSynthesizer();
+				synthesizer.open();
+				r = synthesizer.getReceiver();
+			}
+			seq.getTransmitter().setReceiver(r);
+		} catch (MidiUnavailableException e) {
+			seq.close();
+			if (synthesizer != null) synthesizer.close();
+			synthesizer = null;
+			throw e;
+		}
+		seq.addMetaEventListener(new MetaEventListener() {
 			public void meta(MetaMessage m) {
 				if (m.getType() == 47) {
-					sequencer.stop();
-					sequencer.close();
+					finished(seq);
 				}
 			}
 		});
-		sequencer.start();
+		sequencer = seq;
+	}
+
+	private void closeDevices() {
+		if (sequencer != null) {
+			sequencer.close();
+			sequencer = null;
+		}
+		if (synthesizer != null) {
+			synthesizer.close();
+			synthesizer = null;
+		}
+	}
+
+	// starts the next queued sequence, completing any that cannot be played
+	private void playNext() {
+		while (!queue.isEmpty()) {
+			Entry e = queue.removeFirst();
+			try {
+				sequencer.setSequence(e.sequence);
+			} catch (InvalidMidiDataException ex) {
+				e.done.completeExceptionally(ex);
+				continue;
+			}
+			current = e;
+			paused = false;
+			sequencer.setTickPosition(0);
+			if (e.tempo > 0) {
+				sequencer.setTempoInBPM(e.tempo); // set tempo if specified
+			}
+			sequencer.start();
+			return;
+		}
+	}
+
+	// called at the end of each sequence, to move on to the next one
+	private void finished(Sequencer source) {
+		Entry done;
+		synchronized (this) {
+			if (source != sequencer || current == null) return;
+			done = current;
+			current = null;
+			playNext();
+			if (current == null && closeWhenIdle) {
+				closeDevices();
+			}
+		}
+		done.done.complete(null);
+	}
+
+	private static CompletableFuture<Void> failed(Exception e) {
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		f.completeExceptionally(e);
+		return f;
+	}
+
+	// a sequence waiting to be played, and the future completed once it has finished
+	private static class Entry {
+
+		javax.sound.midi.Sequence sequence;
+		float tempo;
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Entry(javax.sound.midi.Sequence s, float t) {
+			sequence = s;
+			tempo = t;
+		}
+
 	}
 
-}
\ No newline at end of file
+}
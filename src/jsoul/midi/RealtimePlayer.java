@@ -0,0 +1,475 @@
+package jsoul.midi;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.midi.*;
+
+/**
+ * Plays Tracks and Sequences by sending their events straight to a Receiver, without a
+ * javax Sequencer. Each sequence is converted to ready-made ShortMessages, timed in
+ * microseconds, as soon as it is queued, and a dedicated high priority thread sends them
+ * when they are due, timing them with System.nanoTime. Sequences can be queued while
+ * others are playing; each one starts as soon as the one before it ends, so material
+ * generated on the fly plays without gaps.
+ * <p>
+ * When playing to a device with its own clock, such as the default Synthesizer, events
+ * are sent ahead of time by up to the lookahead, with a timestamp telling the device
+ * exactly when to play them, so that the thread waking up late does not delay them.
+ * A plain Receiver gets each event, without a timestamp, when it is due. The player
+ * keeps statistics on how closely the events were sent to their planned times.
+ * <p>
+ * The sending thread runs until close() is called.
+ * @author Andrew Goldin
+ */
+public class RealtimePlayer {
+
+	// waits shorter than this are spent yielding rather than parking, for precision
+	private static final long SPIN_NANOS = 200000;
+	// events sent more than this long after they were due to play count as late
+	private static final long LATE_NANOS = 1000000;
+
+	private Receiver receiver;
+	private MidiDevice device;
+	private boolean ownsDevice;
+	private long lookahead = 20000;
+
+	private final Object lock = new Object();
+	private LinkedList<Block> queue = new LinkedList<Block>();
+	private long endNanos; // when the last queued sequence ends
+	private Thread thread;
+	private boolean stopping, closed;
+
+	private LongAdder numSent = new LongAdder(), numLate = new LongAdder(),
+			totalJitter = new LongAdder();
+	private AtomicLong maxJitter = new AtomicLong();
+
+	/**
+	 * Constructs a player which plays through the default Synthesizer, opened when the
+	 * first sequence is queued and closed by close().
+	 */
+	public RealtimePlayer() {
+	}
+
+	/**
+	 * Constructs a player which plays through the given device, such as a Synthesizer or
+	 * an external MIDI port. The device must already be open. If it keeps time, events
+	 * are timestamped.
+	 * @param device the device to play through
+	 * @throws MidiUnavailableException if the device has no receiver
+	 */
+	public RealtimePlayer(MidiDevice device) throws MidiUnavailableException {
+		this.device = device;
+		receiver = device.getReceiver();
+	}
+
+	/**
+	 * Constructs a player which sends its events to the given receiver, each at the time
+	 * it is due and without a timestamp.
+	 * @param r the receiver to play through
+	 */
+	public RealtimePlayer(Receiver r) {
+		receiver = r;
+	}
+
+	/**
+	 * Sets how far ahead of time events are sent to a device that keeps time. A longer
+	 * lookahead tolerates more delay in waking the sending thread; a shorter one lets
+	 * newly queued sequences start sooner.
+	 * @param microseconds the lookahead in microseconds
+	 */
+	public void setLookahead(long microseconds) {
+		if (microseconds < 0) {
+			throw new IllegalArgumentException("Lookahead cannot be negative: " + microseconds);
+		}
+		synchronized (lock) {
+			lookahead = microseconds;
+		}
+	}
+
+	/**
+	 * Gets how far ahead of time events are sent to a device that keeps time.
+	 * @return the lookahead in microseconds
+	 */
+	public long getLookahead() {
+		synchronized (lock) {
+			return lookahead;
+		}
+	}
+
+	/**
+	 * Queues a Track to play, on its own, once everything queued before it has finished.
+	 * @param t the Track to play
+	 * @return a future which completes when the track has finished playing
+	 */
+	public CompletableFuture<Void> enqueue(Track t) {
+		return enqueue(new Sequence(t));
+	}
+
+	/**
+	 * Queues a Sequence to play once everything queued before it has finished, or right
+	 * away if nothing is playing. The sequence is converted before this method returns,
+	 * so it can be changed afterwards without affecting what is played.
+	 * @param s the Sequence to play
+	 * @return a future which completes when the sequence has finished playing, or
+	 * completes exceptionally if it cannot be played
+	 */
+	public CompletableFuture<Void> enqueue(Sequence s) {
+		Block b;
+		try {
+			b = encode(s);
+		} catch (InvalidMidiDataException e) {
+			return failed(e);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		synchronized (lock) {
+			if (closed) {
+				return failed(new IllegalStateException("player is closed"));
+			}
+			try {
+				open();
+			} catch (MidiUnavailableException e) {
+				return failed(e);
+			}
+			// start after the last queued sequence, or as soon as possible
+			b.startNanos = Math.max(endNanos, System.nanoTime() + lookahead * 1000);
+			endNanos = b.startNanos + b.length * 1000;
+			queue.add(b);
+			lock.notifyAll();
+		}
+		return b.done;
+	}
+
+	/**
+	 * Stops playing, silences every channel, and discards everything queued. Their
+	 * futures are cancelled. The player can still be used afterwards.
+	 */
+	public void stop() {
+		synchronized (lock) {
+			if (thread == null) return;
+			stopping = true;
+			lock.notifyAll();
+			LockSupport.unpark(thread);
+			if (Thread.currentThread() == thread) return; // e.g. from a future's callback
+			while (stopping && thread != null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops playing and ends the sending thread, closing the default Synthesizer if the
+	 * player opened it. Called from the sending thread, such as from a future's
+	 * callback, it returns without waiting, and the thread closes the Synthesizer as it
+	 * ends.
+	 */
+	public void close() {
+		stop();
+		Thread t;
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+			t = thread;
+		}
+		if (t == null) {
+			if (ownsDevice) device.close();
+			return;
+		}
+		LockSupport.unpark(t);
+		if (Thread.currentThread() == t) return; // the thread cannot wait for itself
+		try {
+			t.join(); // the thread closes the device as it ends
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns whether anything is playing or queued.
+	 * @return true if a sequence is playing or queued
+	 */
+	public boolean isPlaying() {
+		synchronized (lock) {
+			return endNanos - System.nanoTime() > 0;
+		}
+	}
+
+	/**
+	 * Gets the number of events sent since the player was created or the statistics
+	 * were reset.
+	 * @return the number of events sent
+	 */
+	public long getNumEventsSent() {
+		return numSent.sum();
+	}
+
+	/**
+	 * Gets the number of events that were sent more than a millisecond after the time
+	 * they were due to play. With a device that keeps time, these are the events for
+	 * which the lookahead was not enough.
+	 * @return the number of late events
+	 */
+	public long getNumLateEvents() {
+		return numLate.sum();
+	}
+
+	/**
+	 * Gets the average time by which events were sent after their planned sending time.
+	 * @return the mean jitter in microseconds
+	 */
+	public double getMeanJitterMicros() {
+		long n = numSent.sum();
+		return n == 0 ? 0 : totalJitter.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * Gets the longest time by which an event was sent after its planned sending time.
+	 * @return the greatest jitter in microseconds
+	 */
+	public double getMaxJitterMicros() {
+		return maxJitter.get() / 1000.0;
+	}
+
+	/**
+	 * Resets the event statistics.
+	 */
+	public void resetStatistics() {
+		numSent.reset();
+		numLate.reset();
+		totalJitter.reset();
+		maxJitter.set(0);
+	}
+
+	// opens the default synthesizer if needed, and starts the sending thread
+	private void open() throws MidiUnavailableException {
+		if (receiver == null) {
+			Synthesizer synth = MidiSystem.getSynthesizer();
+			synth.open();
+			try {
+				receiver = synth.getReceiver();
+			} catch (MidiUnavailableException e) {
+				synth.close();
+				throw e;
+			}
+			device = synth;
+			ownsDevice = true;
+		}
+		if (thread == null) {
+			thread = new Thread(new Runnable() {
+				public void run() {
+					schedule();
+				}
+			}, "jsoul-realtime");
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+	}
+
+	// the loop of the sending thread: sends each event of the sequence at the head of
+	// the queue when it is due, and completes each sequence once its end has passed
+	private void schedule() {
+		LinkedList<Block> finishing = new LinkedList<Block>();
+		boolean timestamped = device != null && device.getMicrosecondPosition() >= 0;
+		try {
+			while (true) {
+				Block b;
+				long ahead;
+				synchronized (lock) {
+					while (!closed && !stopping && queue.isEmpty() && finishing.isEmpty()) {
+						lock.wait();
+					}
+					if (stopping || closed) {
+						discard(finishing);
+						if (closed) break;
+						continue;
+					}
+					b = queue.peek();
+					if (b != null && b.index == b.size) {
+						finishing.add(queue.removeFirst());
+						continue;
+					}
+					ahead = timestamped ? lookahead * 1000 : 0;
+				}
+				long now = System.nanoTime();
+				while (!finishing.isEmpty() && finishing.getFirst().endNanos() - now <= 0) {
+					finishing.removeFirst().done.complete(null);
+				}
+				long next = Long.MAX_VALUE;
+				if (b != null) {
+					long due = b.startNanos + b.times[b.index] * 1000;
+					long sendAt = due - ahead;
+					if (sendAt - now <= 0) {
+						send(b.messages[b.index], timestamped ? due : -1, now, sendAt, due);
+						b.index++;
+						continue;
+					}
+					next = sendAt;
+				}
+				if (!finishing.isEmpty()) {
+					next = Math.min(next, finishing.getFirst().endNanos());
+				}
+				if (next != Long.MAX_VALUE) {
+					waitUntil(next, now);
+				}
+			}
+		} catch (InterruptedException e) {
+			synchronized (lock) {
+				discard(finishing);
+			}
+		}
+		boolean closing;
+		synchronized (lock) {
+			thread = null;
+			lock.notifyAll();
+			closing = closed;
+		}
+		// once closed, close() leaves the device to this thread, which may be the caller
+		if (closing && ownsDevice) {
+			device.close();
+		}
+	}
+
+	// sends a message, recording how long after its planned sending time it went out
+	private void send(ShortMessage m, long dueNanos, long now, long sendAt, long due) {
+		long timestamp = -1;
+		if (dueNanos >= 0) {
+			timestamp = device.getMicrosecondPosition() + (dueNanos - System.nanoTime()) / 1000;
+		}
+		receiver.send(m, timestamp);
+		long jitter = now - sendAt;
+		numSent.increment();
+		totalJitter.add(jitter);
+		if (now - due > LATE_NANOS) numLate.increment();
+		long max = maxJitter.get();
+		while (jitter > max && !maxJitter.compareAndSet(max, jitter)) {
+			max = maxJitter.get();
+		}
+	}
+
+	// parks until shortly before the given time, then yields until it comes
+	private static void waitUntil(long time, long now) {
+		long remaining = time - now;
+		if (remaining > SPIN_NANOS) {
+			LockSupport.parkNanos(remaining - SPIN_NANOS);
+		}
+		else {
+			Thread.yield();
+		}
+	}
+
+	// called by the sending thread with the lock held when stopping: cancels everything
+	// queued and silences every channel
+	private void discard(LinkedList<Block> finishing) {
+		LinkedList<Block> cancelled = new LinkedList<Block>(finishing);
+		cancelled.addAll(queue);
+		finishing.clear();
+		queue.clear();
+		endNanos = System.nanoTime();
+		for (int channel = 0; channel < 16; channel++) {
+			try {
+				receiver.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, 123, 0), -1); // all notes off
+			} catch (InvalidMidiDataException e) {
+				// cannot happen, the message is valid
+			}
+		}
+		for (Block b : cancelled) {
+			b.done.cancel(false);
+		}
+		stopping = false;
+		lock.notifyAll();
+	}
+
+	// converts a sequence to messages in the order they are played, timed in
+	// microseconds from its start, merging the events of its tracks
+	private static Block encode(Sequence s) throws InvalidMidiDataException, IOException {
+		ChannelMap channels = ChannelMap.allocate(s);
+		Block merged = new Block(0);
+		long endTick = 0;
+		for (int i = 0; i < s.getNumTracks(); i++) {
+			Block b = new Block(s.getTrack(i).getNumElements() * 2 + 1);
+			endTick = Math.max(endTick, s.render(i, channels, b.new Encoder(s)));
+			merged = Block.merge(merged, b);
+		}
+		merged.length = s.getMicrosecondPosition(endTick);
+		return merged;
+	}
+
+	private static CompletableFuture<Void> failed(Exception e) {
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		f.completeExceptionally(e);
+		return f;
+	}
+
+	// the messages of a queued sequence, with the time of each in microseconds from its start
+	private static class Block {
+
+		long[] times;
+		ShortMessage[] messages;
+		int size;
+		long length; // in microseconds
+		long startNanos;
+		int index; // the next message to send
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		Block(int capacity) {
+			times = new long[capacity];
+			messages = new ShortMessage[capacity];
+		}
+
+		long endNanos() {
+			return startNanos + length * 1000;
+		}
+
+		// combines two blocks in time order, taking the events of a first at equal times
+		static Block merge(Block a, Block b) {
+			Block m = new Block(a.size + b.size);
+			int i = 0, j = 0;
+			while (i < a.size || j < b.size) {
+				if (j == b.size || (i < a.size && a.times[i] <= b.times[j])) {
+					m.times[m.size] = a.times[i];
+					m.messages[m.size++] = a.messages[i++];
+				}
+				else {
+					m.times[m.size] = b.times[j];
+					m.messages[m.size++] = b.messages[j++];
+				}
+			}
+			return m;
+		}
+
+		// adds the channel messages of a rendered track to the block, dropping meta
+		// messages, since the tempo map is already applied to the times
+		class Encoder implements MidiEventSink {
+
+			private Sequence sequence;
+
+			Encoder(Sequence s) {
+				sequence = s;
+			}
+
+			public void shortMessage(long tick, int command, int channel, int data1, int data2)
+					throws InvalidMidiDataException {
+				if (size == times.length) {
+					times = java.util.Arrays.copyOf(times, size * 2 + 1);
+					messages = java.util.Arrays.copyOf(messages, size * 2 + 1);
+				}
+				times[size] = sequence.getMicrosecondPosition(tick);
+				messages[size++] = new ShortMessage(command, channel, data1, data2);
+			}
+
+			public void metaMessage(long tick, int type, byte[] data) {
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,152 @@
+package jsoul.midi;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * Renders Sequences to Standard MIDI File bytes for many callers at once. Each request
+ * is rendered on its own thread from a ThreadFactory and written to an OutputStream or
+ * to a ByteBuffer, without touching the file system or any shared state.
+ * <p>
+ * The number of requests rendering at the same time is limited. Once the limit is
+ * reached, submitting another request blocks until one finishes, which pushes back on
+ * callers rather than letting work pile up. Each Sequence is copied when it is
+ * submitted, so the caller can go on changing it without affecting the output.
+ * <p>
+ * On a JDK with virtual threads, passing a virtual thread factory (such as
+ * Thread.ofVirtual().factory()) runs each request on a virtual thread; by default,
+ * daemon platform threads are used.
+ * @author Andrew Goldin
+ */
+public class RenderService {
+
+	private ExecutorService executor;
+	private Semaphore permits;
+	private int maxConcurrent;
+
+	/**
+	 * Constructs a service which renders up to the given number of sequences at once,
+	 * on daemon platform threads.
+	 * @param maxConcurrent the greatest number of sequences rendered at the same time
+	 */
+	public RenderService(int maxConcurrent) {
+		this(maxConcurrent, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jsoul-render");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Constructs a service which renders up to the given number of sequences at once,
+	 * each on a new thread from the given factory.
+	 * @param maxConcurrent the greatest number of sequences rendered at the same time
+	 * @param threads the factory for the threads requests are rendered on
+	 */
+	public RenderService(int maxConcurrent, ThreadFactory threads) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("Need a limit of at least 1, got " + maxConcurrent);
+		}
+		this.maxConcurrent = maxConcurrent;
+		permits = new Semaphore(maxConcurrent);
+		executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), threads);
+	}
+
+	/**
+	 * Gets the greatest number of sequences rendered at the same time.
+	 * @return the concurrency limit
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * Gets the number of sequences currently being rendered.
+	 * @return the number of requests in progress
+	 */
+	public int getNumActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * Renders a copy of the sequence to MIDI file bytes, waiting first if the service is
+	 * already rendering as many sequences as it allows.
+	 * @param s the sequence to render
+	 * @return a future holding a read-only buffer of the file contents
+	 * @throws InterruptedException if interrupted while waiting to submit
+	 */
+	public CompletableFuture<ByteBuffer> render(Sequence s) throws InterruptedException {
+		final Sequence snapshot = s.copy();
+		return submit(new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws Exception {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new MidiFileWriter(out).write(snapshot);
+				return ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+			}
+		});
+	}
+
+	/**
+	 * Renders a copy of the sequence to the given stream, waiting first if the service is
+	 * already rendering as many sequences as it allows. The stream is not closed.
+	 * @param s the sequence to render
+	 * @param out the stream to write the MIDI file to
+	 * @return a future which completes once the file has been written, or completes
+	 * exceptionally if writing fails
+	 * @throws InterruptedException if interrupted while waiting to submit
+	 */
+	public CompletableFuture<Void> render(Sequence s, final OutputStream out) throws InterruptedException {
+		final Sequence snapshot = s.copy();
+		return submit(new Callable<Void>() {
+			public Void call() throws Exception {
+				new MidiFileWriter(out).write(snapshot);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stops accepting requests. Requests already submitted still complete.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for the requests already submitted to complete after a shutdown.
+	 * @param timeout the longest time to wait
+	 * @param unit the unit of the timeout
+	 * @return true if every request completed, or false if the time ran out
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	// runs the task once a permit is free, releasing the permit when it ends
+	private <T> CompletableFuture<T> submit(final Callable<T> task) throws InterruptedException {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		permits.acquire();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						result.complete(task.call());
+					} catch (Throwable e) {
+						result.completeExceptionally(e);
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+		return result;
+	}
+
+}
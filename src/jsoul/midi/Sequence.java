@@ -1,23 +1,36 @@
 package jsoul.midi;
 import javax.sound.midi.*;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Represents a MIDI sequence, comprised of several layered Tracks, each
- * containing some subsequence of notes and chords.
+ * containing some subsequence of notes and chords. The durations of the notes and
+ * chords are measured in ticks, and the resolution of the sequence gives the number
+ * of ticks per beat: 16 by default, as the Note duration constants assume, or that of
+ * the file a sequence was read from.
  * @author Andrew Goldin
  */
 public class Sequence implements Playable {
 
+	/**
+	 * The default number of ticks per beat (quarter note), which the duration constants
+	 * of Note, such as Note.QUARTER, assume.
+	 */
+	public static final int DEFAULT_RESOLUTION = 16;
+
 	private ArrayList<Track> tracks;
-	private float tempo;
+	private TempoMap tempoMap;
+	private int resolution = DEFAULT_RESOLUTION;
+	private ExecutorService renderExecutor;
 
 	/**
 	 * Default constructor. Creates a new Sequence at 120 BPM.
 	 */
 	public Sequence() {
 		tracks = new ArrayList<Track>();
-		tempo = 120;
+		tempoMap = new TempoMap();
 	}
 
 	/**
@@ -26,7 +39,7 @@ public class Sequence implements Playable {
 	 */
 	public Sequence(Track... t) {
 		setTracks(t);
-		tempo = 120;
+		tempoMap = new TempoMap();
 	}
 
 	/**
@@ -66,11 +79,12 @@ public class Sequence implements Playable {
 	}
 	
 	/**
-	 * Clears and deletes all tracks in the sequence, and resets the sequence to 120 BPM.
+	 * Clears and deletes all tracks in the sequence, and resets the sequence to 120 BPM
+	 * with no tempo changes or time signatures.
 	 */
 	public void clear() {
 		tracks.clear();
-		tempo = 120;
+		tempoMap = new TempoMap();
 	}
 
 	/**
@@ -99,19 +113,124 @@ public class Sequence implements Playable {
 	}
 
 	/**
-	 * Sets the tempo of the sequence, in beats per minute.
+	 * Sets the tempo of the sequence, in beats per minute. This is the tempo at the start;
+	 * use the tempo map for later tempo changes.
 	 * @param tempoBPM the tempo in beats per minute
 	 */
 	public void setTempoInBPM(float tempoBPM) {
-		tempo = tempoBPM;
+		tempoMap.setTempoInBPM(0, tempoBPM);
 	}
 
 	/**
-	 * Returns the sequence tempo, in beats per minute
+	 * Returns the sequence tempo at the start, in beats per minute
 	 * @return the sequence tempo
 	 */
 	public float getTempo() {
-		return tempo;
+		return tempoMap.getTempoInBPM(0);
+	}
+
+	/**
+	 * Returns the tempo map of the sequence, holding its tempo changes and time
+	 * signatures. Changes to the map change the sequence.
+	 * @return the tempo map
+	 */
+	public TempoMap getTempoMap() {
+		return tempoMap;
+	}
+
+	/**
+	 * Replaces the tempo map of the sequence.
+	 * @param map the new tempo map
+	 */
+	public void setTempoMap(TempoMap map) {
+		tempoMap = map;
+	}
+
+	/**
+	 * Returns the time at which the given tick is played, following the tempo changes
+	 * of the sequence.
+	 * @param tick the position in midi ticks
+	 * @return the time from the start in microseconds
+	 */
+	public long getMicrosecondPosition(long tick) {
+		return tempoMap.tickToMicroseconds(tick, resolution);
+	}
+
+	/**
+	 * Returns the tick being played at the given time, following the tempo changes of
+	 * the sequence.
+	 * @param microseconds the time from the start in microseconds
+	 * @return the position in midi ticks
+	 */
+	public long getTickPosition(long microseconds) {
+		return tempoMap.microsecondsToTick(microseconds, resolution);
+	}
+
+	/**
+	 * Returns a deep copy of the sequence, copying every track along with its Notes and
+	 * Chords, so that the copy can be rendered or changed while this sequence is changed.
+	 * The tempo map, resolution and rendering settings are copied too.
+	 * @return a copy of the sequence
+	 */
+	public Sequence copy() {
+		Sequence s = new Sequence();
+		s.tracks.ensureCapacity(tracks.size());
+		for (int i = 0; i < tracks.size(); i++) {
+			s.tracks.add(tracks.get(i).copy());
+		}
+		s.tempoMap = tempoMap.copy();
+		s.resolution = resolution;
+		s.renderExecutor = renderExecutor;
+		return s;
+	}
+
+	/**
+	 * Sets the number of ticks per beat (quarter note). The durations of the notes and
+	 * chords are not changed, so they will play faster or slower; use rescale to keep
+	 * their timing.
+	 * @param ticksPerBeat the resolution (1 to 32767)
+	 */
+	public void setResolution(int ticksPerBeat) {
+		resolution = checkResolution(ticksPerBeat);
+	}
+
+	/**
+	 * Returns the number of ticks per beat (quarter note).
+	 * @return the resolution
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+
+	/**
+	 * Changes the resolution of the sequence, converting every duration, and the tick of
+	 * every tempo change and time signature, so that the sequence plays the same. See
+	 * Track.rescale for how durations are rounded; ticks in the tempo map are rounded to
+	 * the nearest tick in the same way.
+	 * @param ticksPerBeat the new resolution (1 to 32767)
+	 */
+	public void rescale(int ticksPerBeat) {
+		checkResolution(ticksPerBeat);
+		if (ticksPerBeat == resolution) return;
+		// every track works out its durations before any is changed, as tracks can share
+		// elements, and the elements already changed are shared by all of them
+		int[][] durations = new int[tracks.size()][];
+		for (int i = 0; i < tracks.size(); i++) {
+			durations[i] = tracks.get(i).rescaledDurations(resolution, ticksPerBeat);
+		}
+		Set<Playable> done = Collections.newSetFromMap(new IdentityHashMap<Playable, Boolean>());
+		for (int i = 0; i < tracks.size(); i++) {
+			tracks.get(i).setDurations(durations[i], done);
+		}
+		tempoMap.rescale(resolution, ticksPerBeat);
+		resolution = ticksPerBeat;
+	}
+
+	private static int checkResolution(int ticksPerBeat) {
+		if (ticksPerBeat < 1 || ticksPerBeat > 0x7FFF) {
+			throw new IllegalArgumentException("Resolution out of range: " + ticksPerBeat);
+		}
+		return ticksPerBeat;
 	}
 
 	/**
@@ -125,79 +244,160 @@ public class Sequence implements Playable {
 	}
 
 	/**
-	 * Converts the jsoul sequence into a standard javax.sound.midi.Sequence.
+	 * Transposes all notes and Chords in all tracks of the sequence at once, treating
+	 * pitches that would leave the range 0-127 according to the given policy. With
+	 * REJECT, every track is checked before any is changed, so the sequence is either
+	 * transposed completely or left as it was. See Track.transpose(int, TransposePolicy).
+	 * @param steps the number of steps (positive or negative) to transpose
+	 * @param policy what to do with pitches that would go out of range
+	 * @throws IllegalArgumentException if the policy is REJECT and a pitch would go out
+	 * of range, in which case the sequence is unchanged
+	 */
+	public void transpose(int steps, TransposePolicy policy) {
+		for (int i = 0; i < tracks.size(); i++) {
+			tracks.get(i).checkTranspose(steps, policy);
+		}
+		// shared by all the tracks, so that an element held by several is shifted once
+		Set<Playable> done = Collections.newSetFromMap(new IdentityHashMap<Playable, Boolean>());
+		for (int i = 0; i < tracks.size(); i++) {
+			tracks.get(i).applyTranspose(steps, policy, done);
+		}
+	}
+
+	/**
+	 * Sets whether createMidiSequence renders the tracks of the sequence concurrently,
+	 * using the common ForkJoinPool. The result is the same either way.
+	 * @param parallel true to render tracks in parallel, false to render them one after another
+	 */
+	public void setParallelRendering(boolean parallel) {
+		renderExecutor = parallel ? ForkJoinPool.commonPool() : null;
+	}
+
+	/**
+	 * Sets the executor that createMidiSequence uses to render the tracks of the sequence
+	 * concurrently. Providing null renders the tracks one after another.
+	 * @param executor the executor to render tracks with, or null
+	 */
+	public void setRenderExecutor(ExecutorService executor) {
+		renderExecutor = executor;
+	}
+
+	/**
+	 * Returns whether the tracks of the sequence are rendered in parallel.
+	 * @return true if tracks are rendered in parallel
+	 */
+	public boolean isParallelRendering() {
+		return renderExecutor != null;
+	}
+
+	/**
+	 * Converts the jsoul sequence into a standard javax.sound.midi.Sequence. If parallel
+	 * rendering is enabled, the events of each track are produced concurrently; the
+	 * tracks are still assembled in order, so the result is identical.
 	 * @return the converted Sequence
 	 */
 	public javax.sound.midi.Sequence createMidiSequence() {
 		javax.sound.midi.Sequence s = null;
 		try {
-			s = new javax.sound.midi.Sequence(javax.sound.midi.Sequence.PPQ, 16);
-			int channelNum = 0;
-			for (Track t : tracks) {
-				int tickCount = 0;
-				javax.sound.midi.Track javaTrack = s.createTrack();
-				javaTrack.add(new MidiEvent(sequenceTempo(), tickCount)); // set tempo
-				ShortMessage setInst = new ShortMessage();
-				setInst.setMessage(ShortMessage.PROGRAM_CHANGE, channelNum,
-						t.getInstrument().getInstrumentNumber(), 0);
-				javaTrack.add(new MidiEvent(setInst, tickCount)); // set instrument for track
-				for (int i = 0; i < t.getNumElements(); i++) {
-					if (t.getElement(i) instanceof Note) {
-						Note currentNote = (Note) t.getElement(i);
-						ShortMessage onMessage = new ShortMessage();
-						onMessage.setMessage(ShortMessage.NOTE_ON, channelNum,
-								currentNote.getPitch(), currentNote.getVelocity());
-						javaTrack.add(new MidiEvent(onMessage, tickCount));
-						tickCount += currentNote.getDuration();
-						ShortMessage offMessage = new ShortMessage();
-						offMessage.setMessage(ShortMessage.NOTE_OFF, channelNum,
-								currentNote.getPitch(), 0);
-						javaTrack.add(new MidiEvent(offMessage, tickCount));
-					}
-					else if (t.getElement(i) instanceof Chord) {
-						Chord currentChord = (Chord) t.getElement(i);
-						Note[] noteList = currentChord.getNotes();
-						for (int j = 0; j < noteList.length; j++) {
-							ShortMessage onMessage = new ShortMessage();
-							onMessage.setMessage(ShortMessage.NOTE_ON, channelNum,
-									noteList[j].getPitch(), noteList[j].getVelocity());
-							javaTrack.add(new MidiEvent(onMessage, tickCount));
-						}
-						tickCount += currentChord.getDuration();
-						for (int j = 0; j < noteList.length; j++) {
-							ShortMessage offMessage = new ShortMessage();
-							offMessage.setMessage(ShortMessage.NOTE_OFF, channelNum,
-									noteList[j].getPitch(), 0);
-							javaTrack.add(new MidiEvent(offMessage, tickCount));
-						}
-					}
+			s = new javax.sound.midi.Sequence(javax.sound.midi.Sequence.PPQ, resolution);
+			if (renderExecutor != null && tracks.size() > 1) {
+				renderInParallel(s, renderExecutor);
+			}
+			else {
+				ChannelMap channels = ChannelMap.allocate(this);
+				for (int i = 0; i < tracks.size(); i++) {
+					render(i, channels, new TrackBuilder(s.createTrack()));
 				}
-				channelNum++;
 			}
 		} catch (InvalidMidiDataException e) {
 			System.err.println("Error: (Sequence) failure to generate Java midi sequence");
 			//e.printStackTrace();
+		} catch (IOException e) {
+			System.err.println("Error: (Sequence) failure to generate Java midi sequence");
+			//e.printStackTrace();
 		}
 		return s;
 	}
 
-	private MetaMessage sequenceTempo() {
-		// convert tempo to a byte array to be recognized by Midi system
-		String hexString = Integer.toHexString(60000000 / (int) tempo);
-		if (hexString.length() % 2 != 0) {
-			hexString = "0" + hexString;
+	// creates the javax tracks in order, then fills each of them on the executor.
+	// Waits for every track to finish before reporting the first failure.
+	private void renderInParallel(javax.sound.midi.Sequence s, ExecutorService executor)
+			throws InvalidMidiDataException, IOException {
+		ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+		final ChannelMap channels = ChannelMap.allocate(this);
+		for (int i = 0; i < tracks.size(); i++) {
+			final int trackNum = i;
+			final javax.sound.midi.Track javaTrack = s.createTrack();
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					render(trackNum, channels, new TrackBuilder(javaTrack));
+					return null;
+				}
+			}));
 		}
-		byte[] data = new java.math.BigInteger(hexString, 16).toByteArray();
-		
-		// create and return message with tempo change
-		MetaMessage m = new MetaMessage();
-		try {
-			// tempo change MetaMessage has command 81
-			m.setMessage(81, data, data.length);
-		} catch (InvalidMidiDataException e) {
-			System.err.println("Error: (Sequence) cannot set tempo for file");
+		Throwable failure = null;
+		for (int i = 0; i < results.size(); i++) {
+			try {
+				results.get(i).get();
+			} catch (ExecutionException e) {
+				if (failure == null) failure = e.getCause();
+			} catch (InterruptedException e) {
+				for (int j = i; j < results.size(); j++) {
+					results.get(j).cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while rendering tracks");
+			}
+		}
+		if (failure instanceof InvalidMidiDataException) throw (InvalidMidiDataException) failure;
+		if (failure instanceof IOException) throw (IOException) failure;
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+	}
+
+	// renders the tempo, instrument and elements of a track to the sink, and returns
+	// the tick at which the track ends, on the channel given to it by the channel map. Every
+	// track starts with the tempo, and the first track also holds the rest of the tempo map.
+	long render(int trackNum, ChannelMap channels, MidiEventSink sink)
+			throws InvalidMidiDataException, IOException {
+		Track t = tracks.get(trackNum);
+		sink.metaMessage(0, 81, TempoMap.tempoData(tempoMap.getMicrosecondsPerBeat(0))); // set tempo
+		TempoMap.MetaMerger merger = null;
+		if (trackNum == 0 && tempoMap.hasChanges()) {
+			merger = tempoMap.new MetaMerger(sink);
+			sink = merger;
+		}
+		int channel = channels.getChannel(trackNum);
+		if (channels.sendsProgramChange(trackNum)) {
+			sink.shortMessage(0, ShortMessage.PROGRAM_CHANGE, channel,
+					t.getInstrument().getInstrumentNumber(), 0); // set instrument for channel
+		}
+		long end = t.render(channel, 0, sink);
+		return merger != null ? merger.finish(end) : end;
+	}
+
+	// adds the rendered events of a track to a javax.sound.midi.Track
+	private static class TrackBuilder implements MidiEventSink {
+
+		private javax.sound.midi.Track track;
+
+		TrackBuilder(javax.sound.midi.Track t) {
+			track = t;
 		}
-		return m;
+
+		public void shortMessage(long tick, int command, int channel, int data1, int data2)
+				throws InvalidMidiDataException {
+			ShortMessage m = new ShortMessage();
+			m.setMessage(command, channel, data1, data2);
+			track.add(new MidiEvent(m, tick));
+		}
+
+		public void metaMessage(long tick, int type, byte[] data) throws InvalidMidiDataException {
+			MetaMessage m = new MetaMessage();
+			m.setMessage(type, data, data.length);
+			track.add(new MidiEvent(m, tick));
+		}
+
 	}
 
 	/**
@@ -206,12 +406,31 @@ public class Sequence implements Playable {
 	 * @return the string representation of the sequence
 	 */
 	public String toString() {
-		String s = "SEQUENCE: Tracks = " + tracks.size() + ", Tempo = " + tempo + " bpm\n";
+		StringBuilder sb = new StringBuilder();
+		try {
+			dump(sb, Integer.MAX_VALUE);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen, a StringBuilder does not throw
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the String representation of the sequence to the given output, one element
+	 * at a time. At most the given number of elements of each track are written. See
+	 * Track.dump.
+	 * @param out where to write, such as a Writer, StringBuilder or PrintStream
+	 * @param limit the greatest number of elements to write for each track
+	 * @throws IOException if the output cannot be written
+	 */
+	public void dump(Appendable out, int limit) throws IOException {
+		out.append("SEQUENCE: Tracks = ").append(String.valueOf(tracks.size()))
+				.append(", Tempo = ").append(String.valueOf(getTempo())).append(" bpm\n");
 		for (int i = 0; i < tracks.size(); i++) {
-			s += tracks.get(i).toString() + "\n";
+			tracks.get(i).dump(out, limit);
+			out.append('\n');
 		}
-		s += "END SEQUENCE";
-		return s;
+		out.append("END SEQUENCE");
 	}
 
 }
\ No newline at end of file
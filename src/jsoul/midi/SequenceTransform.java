@@ -0,0 +1,19 @@
+package jsoul.midi;
+
+/**
+ * An operation applied to each Sequence by a BatchConverter, such as transposing it
+ * or changing its tempo. Transforms are called from several threads at once, each
+ * with a different Sequence, so they should not share modifiable state.
+ * @author Andrew Goldin
+ */
+public interface SequenceTransform {
+
+	/**
+	 * Transforms a sequence read from a file. The sequence may be modified in place and
+	 * returned, or a new sequence may be returned in its place.
+	 * @param s the sequence read from the file
+	 * @return the sequence to write
+	 */
+	public Sequence transform(Sequence s);
+
+}
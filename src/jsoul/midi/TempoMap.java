@@ -0,0 +1,429 @@
+package jsoul.midi;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.sound.midi.InvalidMidiDataException;
+
+/**
+ * The tempo changes and time signatures of a Sequence, each at a tick position, kept in
+ * order. There is always a tempo at tick 0, 120 BPM unless set otherwise. Time
+ * signatures are optional; MIDI assumes 4/4 until the first one.
+ * <p>
+ * The map converts between ticks and real time. The time at which each tempo change
+ * occurs is computed once and kept in a table, so a conversion is a binary search for
+ * the tempo in effect followed by a single multiplication.
+ * @author Andrew Goldin
+ */
+public class TempoMap {
+
+	private static final int DEFAULT_MPQ = 500000; // 120 BPM
+
+	private int numTempos;
+	private long[] tempoTicks = new long[4];
+	private int[] mpqs = new int[4];
+	private float[] bpms = new float[4];
+
+	private int numSignatures;
+	private long[] signatureTicks = new long[0];
+	private int[] numerators = new int[0], denominators = new int[0];
+
+	// the time in microseconds at which each tempo change occurs, for the resolution it
+	// was computed for, or null if a tempo has changed since
+	private long[] micros;
+	private int microsResolution;
+
+	/**
+	 * Constructs a tempo map with a tempo of 120 BPM and no time signatures.
+	 */
+	public TempoMap() {
+		numTempos = 1;
+		mpqs[0] = DEFAULT_MPQ;
+		bpms[0] = 120;
+	}
+
+	/**
+	 * Sets the tempo from the given tick onwards, in beats per minute, replacing any tempo
+	 * change already at that tick. As when writing a Sequence's tempo, the tempo is stored
+	 * in the file as 60000000 / (int) tempoBPM microseconds per beat.
+	 * @param tick the position of the tempo change in midi ticks
+	 * @param tempoBPM the tempo in beats per minute (1 to 60000000)
+	 */
+	public void setTempoInBPM(long tick, float tempoBPM) {
+		if ((int) tempoBPM < 1 || (int) tempoBPM > 60000000) {
+			throw new IllegalArgumentException("Tempo out of range: " + tempoBPM);
+		}
+		setTempo(tick, 60000000 / (int) tempoBPM, tempoBPM);
+	}
+
+	/**
+	 * Sets the tempo from the given tick onwards, in microseconds per beat (quarter note),
+	 * replacing any tempo change already at that tick.
+	 * @param tick the position of the tempo change in midi ticks
+	 * @param microsPerBeat the length of a beat in microseconds (at least 1)
+	 */
+	public void setTempo(long tick, int microsPerBeat) {
+		if (microsPerBeat < 1) {
+			throw new IllegalArgumentException("Tempo out of range: " + microsPerBeat);
+		}
+		setTempo(tick, microsPerBeat, 60000000 / microsPerBeat);
+	}
+
+	private void setTempo(long tick, int mpq, float bpm) {
+		if (tick < 0) {
+			throw new IllegalArgumentException("Negative tick: " + tick);
+		}
+		int i = Arrays.binarySearch(tempoTicks, 0, numTempos, tick);
+		if (i < 0) {
+			i = -i - 1;
+			if (numTempos == tempoTicks.length) {
+				tempoTicks = Arrays.copyOf(tempoTicks, numTempos * 2);
+				mpqs = Arrays.copyOf(mpqs, numTempos * 2);
+				bpms = Arrays.copyOf(bpms, numTempos * 2);
+			}
+			System.arraycopy(tempoTicks, i, tempoTicks, i + 1, numTempos - i);
+			System.arraycopy(mpqs, i, mpqs, i + 1, numTempos - i);
+			System.arraycopy(bpms, i, bpms, i + 1, numTempos - i);
+			numTempos++;
+		}
+		tempoTicks[i] = tick;
+		mpqs[i] = mpq;
+		bpms[i] = bpm;
+		micros = null;
+	}
+
+	/**
+	 * Removes the tempo change at the given position, if there is one. The tempo at tick 0
+	 * cannot be removed, only changed.
+	 * @param n the position of the tempo change in the map (1 or more)
+	 */
+	public void removeTempoChange(int n) {
+		if (n < 1 || n >= numTempos) {
+			throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + numTempos);
+		}
+		System.arraycopy(tempoTicks, n + 1, tempoTicks, n, numTempos - n - 1);
+		System.arraycopy(mpqs, n + 1, mpqs, n, numTempos - n - 1);
+		System.arraycopy(bpms, n + 1, bpms, n, numTempos - n - 1);
+		numTempos--;
+		micros = null;
+	}
+
+	/**
+	 * Returns the number of tempo changes, including the tempo at tick 0.
+	 * @return the number of tempo changes
+	 */
+	public int getNumTempoChanges() {
+		return numTempos;
+	}
+
+	/**
+	 * Returns the position of a tempo change.
+	 * @param n the position of the tempo change in the map
+	 * @return the tick at which the tempo changes
+	 */
+	public long getTempoTick(int n) {
+		checkTempo(n);
+		return tempoTicks[n];
+	}
+
+	/**
+	 * Returns the length of a beat after a tempo change, in microseconds.
+	 * @param n the position of the tempo change in the map
+	 * @return the microseconds per beat
+	 */
+	public int getMicrosecondsPerBeat(int n) {
+		checkTempo(n);
+		return mpqs[n];
+	}
+
+	/**
+	 * Returns the tempo after a tempo change, in beats per minute. This is the value it
+	 * was set to, or 60000000 / microseconds per beat if it was read from a file.
+	 * @param n the position of the tempo change in the map
+	 * @return the tempo in beats per minute
+	 */
+	public float getTempoInBPM(int n) {
+		checkTempo(n);
+		return bpms[n];
+	}
+
+	/**
+	 * Returns the position in the map of the tempo in effect at the given tick.
+	 * @param tick the time in midi ticks
+	 * @return the position of the tempo change in the map
+	 */
+	public int getTempoIndexAt(long tick) {
+		int i = Arrays.binarySearch(tempoTicks, 0, numTempos, tick);
+		return i >= 0 ? i : Math.max(0, -i - 2);
+	}
+
+	/**
+	 * Sets the time signature from the given tick onwards, replacing any time signature
+	 * already at that tick.
+	 * @param tick the position of the time signature in midi ticks
+	 * @param numerator the number of beats in a bar (1 to 255)
+	 * @param denominator the note value of a beat, a power of two from 1 to 128, e.g. 4
+	 * for quarter notes
+	 */
+	public void setTimeSignature(long tick, int numerator, int denominator) {
+		if (tick < 0) {
+			throw new IllegalArgumentException("Negative tick: " + tick);
+		}
+		if (numerator < 1 || numerator > 255) {
+			throw new IllegalArgumentException("Numerator out of range: " + numerator);
+		}
+		if (denominator < 1 || denominator > 128 || Integer.bitCount(denominator) != 1) {
+			throw new IllegalArgumentException("Denominator must be a power of two from 1 to 128: " + denominator);
+		}
+		int i = Arrays.binarySearch(signatureTicks, 0, numSignatures, tick);
+		if (i < 0) {
+			i = -i - 1;
+			if (numSignatures == signatureTicks.length) {
+				int capacity = Math.max(4, numSignatures * 2);
+				signatureTicks = Arrays.copyOf(signatureTicks, capacity);
+				numerators = Arrays.copyOf(numerators, capacity);
+				denominators = Arrays.copyOf(denominators, capacity);
+			}
+			System.arraycopy(signatureTicks, i, signatureTicks, i + 1, numSignatures - i);
+			System.arraycopy(numerators, i, numerators, i + 1, numSignatures - i);
+			System.arraycopy(denominators, i, denominators, i + 1, numSignatures - i);
+			numSignatures++;
+		}
+		signatureTicks[i] = tick;
+		numerators[i] = numerator;
+		denominators[i] = denominator;
+	}
+
+	/**
+	 * Removes a time signature.
+	 * @param n the position of the time signature in the map
+	 */
+	public void removeTimeSignature(int n) {
+		checkSignature(n);
+		System.arraycopy(signatureTicks, n + 1, signatureTicks, n, numSignatures - n - 1);
+		System.arraycopy(numerators, n + 1, numerators, n, numSignatures - n - 1);
+		System.arraycopy(denominators, n + 1, denominators, n, numSignatures - n - 1);
+		numSignatures--;
+	}
+
+	/**
+	 * Returns the number of time signatures.
+	 * @return the number of time signatures
+	 */
+	public int getNumTimeSignatures() {
+		return numSignatures;
+	}
+
+	/**
+	 * Returns the position of a time signature.
+	 * @param n the position of the time signature in the map
+	 * @return the tick at which the time signature starts
+	 */
+	public long getTimeSignatureTick(int n) {
+		checkSignature(n);
+		return signatureTicks[n];
+	}
+
+	/**
+	 * Returns the number of beats in a bar of a time signature.
+	 * @param n the position of the time signature in the map
+	 * @return the numerator
+	 */
+	public int getNumerator(int n) {
+		checkSignature(n);
+		return numerators[n];
+	}
+
+	/**
+	 * Returns the note value of a beat in a time signature, e.g. 4 for quarter notes.
+	 * @param n the position of the time signature in the map
+	 * @return the denominator
+	 */
+	public int getDenominator(int n) {
+		checkSignature(n);
+		return denominators[n];
+	}
+
+	/**
+	 * Converts a tick position to the time from the start, following the tempo changes.
+	 * @param tick the position in midi ticks
+	 * @param resolution the number of ticks per beat
+	 * @return the time in microseconds
+	 */
+	public long tickToMicroseconds(long tick, int resolution) {
+		long[] m = micros(resolution);
+		int i = getTempoIndexAt(tick);
+		return m[i] + (tick - tempoTicks[i]) * mpqs[i] / resolution;
+	}
+
+	/**
+	 * Converts a time from the start to the tick position playing at that time, following
+	 * the tempo changes. The tick is rounded down.
+	 * @param microseconds the time in microseconds
+	 * @param resolution the number of ticks per beat
+	 * @return the position in midi ticks
+	 */
+	public long microsecondsToTick(long microseconds, int resolution) {
+		long[] m = micros(resolution);
+		int i = Arrays.binarySearch(m, 0, numTempos, microseconds);
+		i = i >= 0 ? i : Math.max(0, -i - 2);
+		// tempo changes in the same microsecond leave the last of them in effect
+		while (i + 1 < numTempos && m[i + 1] == m[i]) i++;
+		return tempoTicks[i] + (microseconds - m[i]) * resolution / mpqs[i];
+	}
+
+	// the table of the times of the tempo changes, computed again if out of date
+	private long[] micros(int resolution) {
+		if (resolution < 1) {
+			throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+		}
+		long[] m = micros;
+		if (m == null || microsResolution != resolution) {
+			m = new long[numTempos];
+			for (int i = 1; i < numTempos; i++) {
+				m[i] = m[i - 1] + (tempoTicks[i] - tempoTicks[i - 1]) * mpqs[i - 1] / resolution;
+			}
+			micros = m;
+			microsResolution = resolution;
+		}
+		return m;
+	}
+
+	/**
+	 * Returns a copy of the map.
+	 * @return the copy
+	 */
+	public TempoMap copy() {
+		TempoMap t = new TempoMap();
+		t.numTempos = numTempos;
+		t.tempoTicks = tempoTicks.clone();
+		t.mpqs = mpqs.clone();
+		t.bpms = bpms.clone();
+		t.numSignatures = numSignatures;
+		t.signatureTicks = signatureTicks.clone();
+		t.numerators = numerators.clone();
+		t.denominators = denominators.clone();
+		return t;
+	}
+
+	// converts every tick from one resolution to another, rounding to the nearest tick as
+	// Track.rescale does. Changes which round to the same tick are merged, the later one
+	// taking its place, as when setting them again at that tick.
+	void rescale(int fromResolution, int toResolution) {
+		long half = fromResolution / 2;
+		int n = 0;
+		for (int i = 0; i < numTempos; i++) {
+			long tick = (tempoTicks[i] * toResolution + half) / fromResolution;
+			if (n > 0 && tempoTicks[n - 1] == tick) n--;
+			tempoTicks[n] = tick;
+			mpqs[n] = mpqs[i];
+			bpms[n] = bpms[i];
+			n++;
+		}
+		numTempos = n;
+		n = 0;
+		for (int i = 0; i < numSignatures; i++) {
+			long tick = (signatureTicks[i] * toResolution + half) / fromResolution;
+			if (n > 0 && signatureTicks[n - 1] == tick) n--;
+			signatureTicks[n] = tick;
+			numerators[n] = numerators[i];
+			denominators[n] = denominators[i];
+			n++;
+		}
+		numSignatures = n;
+		micros = null;
+	}
+
+	// true if the map has events beyond the tempo at tick 0, which are written to the first track
+	boolean hasChanges() {
+		return numTempos > 1 || numSignatures > 0;
+	}
+
+	// merges the tempo changes after tick 0 and the time signatures, as meta events, in
+	// order with the events of a track
+	class MetaMerger implements MidiEventSink {
+
+		private MidiEventSink sink;
+		private int nextTempo = 1, nextSignature = 0;
+
+		MetaMerger(MidiEventSink sink) {
+			this.sink = sink;
+		}
+
+		public void shortMessage(long tick, int command, int channel, int data1, int data2)
+				throws InvalidMidiDataException, IOException {
+			writeUntil(tick);
+			sink.shortMessage(tick, command, channel, data1, data2);
+		}
+
+		public void metaMessage(long tick, int type, byte[] data)
+				throws InvalidMidiDataException, IOException {
+			writeUntil(tick);
+			sink.metaMessage(tick, type, data);
+		}
+
+		// writes the events that come after the end of the track, and returns the tick of
+		// the last event
+		long finish(long end) throws InvalidMidiDataException, IOException {
+			writeUntil(Long.MAX_VALUE);
+			long last = end;
+			if (numTempos > 1) last = Math.max(last, tempoTicks[numTempos - 1]);
+			if (numSignatures > 0) last = Math.max(last, signatureTicks[numSignatures - 1]);
+			return last;
+		}
+
+		// writes the pending events at or before the tick, in tick order. A time signature
+		// goes before a tempo change at the same tick.
+		private void writeUntil(long tick) throws InvalidMidiDataException, IOException {
+			while (true) {
+				boolean tempo = nextTempo < numTempos, signature = nextSignature < numSignatures;
+				if (signature && signatureTicks[nextSignature] <= tick
+						&& (!tempo || signatureTicks[nextSignature] <= tempoTicks[nextTempo])) {
+					sink.metaMessage(signatureTicks[nextSignature], 88, signatureData(nextSignature));
+					nextSignature++;
+				}
+				else if (tempo && tempoTicks[nextTempo] <= tick) {
+					sink.metaMessage(tempoTicks[nextTempo], 81, tempoData(mpqs[nextTempo]));
+					nextTempo++;
+				}
+				else {
+					return;
+				}
+			}
+		}
+
+	}
+
+	// the data bytes of a time signature meta message: numerator, the power of two of the
+	// denominator, 24 MIDI clocks per metronome click and 8 32nd notes per beat
+	private byte[] signatureData(int n) {
+		return new byte[] { (byte) numerators[n], (byte) Integer.numberOfTrailingZeros(denominators[n]), 24, 8 };
+	}
+
+	// the data bytes of a tempo change meta message, in microseconds per quarter note.
+	// Encoded as the shortest big-endian two's complement form of the value.
+	static byte[] tempoData(int microsPerBeat) {
+		long mpq = microsPerBeat & 0xFFFFFFFFL;
+		int length = 1;
+		while (length < 5 && mpq >= 1L << (8 * length - 1)) {
+			length++;
+		}
+		byte[] data = new byte[length];
+		for (int i = length - 1; i >= 0; i--) {
+			data[i] = (byte) mpq;
+			mpq >>>= 8;
+		}
+		return data;
+	}
+
+	private void checkTempo(int n) {
+		if (n < 0 || n >= numTempos) {
+			throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + numTempos);
+		}
+	}
+
+	private void checkSignature(int n) {
+		if (n < 0 || n >= numSignatures) {
+			throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + numSignatures);
+		}
+	}
+
+}
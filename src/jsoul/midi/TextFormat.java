@@ -0,0 +1,298 @@
+package jsoul.midi;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Writes Sequences as compact, line-based text and reads them back. Each Note or Chord
+ * takes one line, so large sequences can be compared with ordinary text diff tools,
+ * and reading is a single pass over the characters, without splitting lines into
+ * Strings. For example:
+ * <pre>
+ * jsoul-text 1
+ * resolution 16
+ * tempo 0 500000
+ * time 0 4 4
+ * track 40
+ * N 60 64 16
+ * C 80 32 60 64 67
+ * percussion
+ * N 36 100 16
+ * </pre>
+ * The header gives the format version and the resolution of the sequence. It is
+ * followed by the tempo map, as "tempo tick microseconds-per-beat" and
+ * "time tick numerator denominator" lines, and then by the tracks. Each track starts
+ * with "track instrument", "packed instrument" for a PackedTrack, or "percussion"
+ * for a PercussionTrack, and has one
+ * "N pitch velocity duration" line for each Note and one
+ * "C velocity duration pitch pitch ..." line for each Chord. Blank lines and lines
+ * starting with '#' are ignored.
+ * @author Andrew Goldin
+ */
+public final class TextFormat {
+
+	/**
+	 * The version of the format written.
+	 */
+	public static final int VERSION = 1;
+
+	private TextFormat() {
+	}
+
+	/**
+	 * Writes a sequence as text.
+	 * @param s the sequence to write
+	 * @param out where to write, such as a Writer, StringBuilder or PrintStream
+	 * @throws IOException if the output cannot be written
+	 */
+	public static void write(Sequence s, Appendable out) throws IOException {
+		out.append("jsoul-text ").append(String.valueOf(VERSION)).append('\n');
+		out.append("resolution ").append(String.valueOf(s.getResolution())).append('\n');
+		TempoMap map = s.getTempoMap();
+		for (int i = 0; i < map.getNumTempoChanges(); i++) {
+			out.append("tempo ").append(String.valueOf(map.getTempoTick(i))).append(' ')
+					.append(String.valueOf(map.getMicrosecondsPerBeat(i))).append('\n');
+		}
+		for (int i = 0; i < map.getNumTimeSignatures(); i++) {
+			out.append("time ").append(String.valueOf(map.getTimeSignatureTick(i))).append(' ')
+					.append(String.valueOf(map.getNumerator(i))).append(' ')
+					.append(String.valueOf(map.getDenominator(i))).append('\n');
+		}
+		for (int i = 0; i < s.getNumTracks(); i++) {
+			Track t = s.getTrack(i);
+			if (t instanceof PercussionTrack) {
+				out.append("percussion\n");
+			}
+			else {
+				out.append(t instanceof PackedTrack ? "packed " : "track ")
+						.append(String.valueOf(t.getInstrument().getInstrumentNumber())).append('\n');
+			}
+			for (int j = 0; j < t.getNumElements(); j++) {
+				Playable p = t.getElement(j);
+				if (p instanceof Note) {
+					Note n = (Note) p;
+					out.append("N ").append(String.valueOf(n.getPitch())).append(' ')
+							.append(String.valueOf(n.getVelocity())).append(' ')
+							.append(String.valueOf(n.getDuration())).append('\n');
+				}
+				else {
+					Chord c = (Chord) p;
+					out.append("C ").append(String.valueOf(c.getVelocity())).append(' ')
+							.append(String.valueOf(c.getDuration()));
+					for (int k = 0; k < c.getSize(); k++) {
+						out.append(' ').append(String.valueOf(c.getPitch(k)));
+					}
+					out.append('\n');
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a sequence as text.
+	 * @param s the sequence
+	 * @return the text of the sequence
+	 */
+	public static String toText(Sequence s) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			write(s, sb);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen, a StringBuilder does not throw
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a sequence from text.
+	 * @param in the text to read
+	 * @return the sequence
+	 * @throws IOException if the text cannot be read, or is not in the format
+	 */
+	public static Sequence read(Reader in) throws IOException {
+		return new Parser(in).parse();
+	}
+
+	/**
+	 * Reads a sequence from text held in a String.
+	 * @param text the text to read
+	 * @return the sequence
+	 * @throws IOException if the text is not in the format
+	 */
+	public static Sequence parse(String text) throws IOException {
+		return read(new StringReader(text));
+	}
+
+	// reads the format a character at a time from a buffer, parsing numbers in place
+	private static class Parser {
+
+		private Reader in;
+		private char[] buffer = new char[8192];
+		private int pos, limit;
+		private int line = 1;
+		private StringBuilder word = new StringBuilder();
+		private int[] pitches = new int[8];
+		private Sequence sequence;
+		private TempoMap tempoMap;
+		private Track track; // the track being read
+
+		Parser(Reader in) {
+			this.in = in;
+		}
+
+		Sequence parse() throws IOException {
+			if (!nextLine() || !"jsoul-text".contentEquals(readWord())) {
+				throw error("not jsoul text");
+			}
+			int version = (int) readNumber();
+			if (version != VERSION) {
+				throw error("unsupported version " + version);
+			}
+			endLine();
+			sequence = new Sequence();
+			tempoMap = new TempoMap();
+			while (nextLine()) {
+				try {
+					parseLine();
+				} catch (IllegalArgumentException e) {
+					throw error(e.getMessage()); // e.g. a resolution or time signature out of range
+				}
+				endLine();
+			}
+			sequence.setTempoMap(tempoMap);
+			return sequence;
+		}
+
+		// parses the line starting at the current position
+		private void parseLine() throws IOException {
+			readWord();
+			if (word.length() == 1 && word.charAt(0) == 'N' && track != null) {
+				int p = (int) readNumber(), v = (int) readNumber();
+				track.add(new Note(p, v, (int) readNumber()));
+			}
+			else if (word.length() == 1 && word.charAt(0) == 'C' && track != null) {
+				int v = (int) readNumber(), d = (int) readNumber();
+				int n = 0;
+				while (skipSpaces()) {
+					if (n == pitches.length) pitches = Arrays.copyOf(pitches, n * 2);
+					pitches[n++] = (int) readNumber();
+				}
+				track.add(new Chord(Arrays.copyOf(pitches, n), v, d));
+			}
+			else if ("track".contentEquals(word) || "packed".contentEquals(word)) {
+				track = "track".contentEquals(word) ? new Track() : new PackedTrack();
+				track.setInstrument((int) readNumber());
+				sequence.add(track);
+			}
+			else if ("percussion".contentEquals(word)) {
+				track = new PercussionTrack();
+				sequence.add(track);
+			}
+			else if ("tempo".contentEquals(word) && track == null) {
+				long tick = readNumber();
+				tempoMap.setTempo(tick, (int) readNumber());
+			}
+			else if ("time".contentEquals(word) && track == null) {
+				long tick = readNumber();
+				int numerator = (int) readNumber();
+				tempoMap.setTimeSignature(tick, numerator, (int) readNumber());
+			}
+			else if ("resolution".contentEquals(word) && track == null) {
+				sequence.setResolution((int) readNumber());
+			}
+			else {
+				throw error("unexpected \"" + word + "\"");
+			}
+		}
+
+		// moves to the start of the next line with content, returning false at the end
+		private boolean nextLine() throws IOException {
+			while (true) {
+				int c = peek();
+				if (c < 0) return false;
+				if (c == '#') {
+					while (c >= 0 && c != '\n') {
+						pos++;
+						c = peek();
+					}
+				}
+				else if (c == '\n') {
+					pos++;
+					line++;
+				}
+				else if (c == ' ' || c == '\t' || c == '\r') {
+					pos++;
+				}
+				else {
+					return true;
+				}
+			}
+		}
+
+		// skips spaces, returning whether more of the line follows
+		private boolean skipSpaces() throws IOException {
+			int c = peek();
+			while (c == ' ' || c == '\t' || c == '\r') {
+				pos++;
+				c = peek();
+			}
+			return c >= 0 && c != '\n';
+		}
+
+		private void endLine() throws IOException {
+			if (skipSpaces()) {
+				throw error("unexpected text at the end of the line");
+			}
+		}
+
+		private StringBuilder readWord() throws IOException {
+			skipSpaces();
+			word.setLength(0);
+			int c = peek();
+			while (c > ' ') {
+				word.append((char) c);
+				pos++;
+				c = peek();
+			}
+			return word;
+		}
+
+		private long readNumber() throws IOException {
+			if (!skipSpaces()) {
+				throw error("missing number");
+			}
+			boolean negative = peek() == '-';
+			if (negative) pos++;
+			long value = 0;
+			int digits = 0;
+			int c = peek();
+			while (c >= '0' && c <= '9') {
+				if (++digits > 18) throw error("number too long");
+				value = value * 10 + (c - '0');
+				pos++;
+				c = peek();
+			}
+			if (digits == 0 || c > ' ') {
+				throw error("not a number");
+			}
+			return negative ? -value : value;
+		}
+
+		private int peek() throws IOException {
+			if (pos == limit) {
+				limit = in.read(buffer, 0, buffer.length);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[pos];
+		}
+
+		private IOException error(String message) {
+			return new IOException("line " + line + ": " + message);
+		}
+
+	}
+
+}
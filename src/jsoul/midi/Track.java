@@ -1,14 +1,27 @@
 package jsoul.midi;
+import java.io.IOException;
 import java.util.*;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
 
 /**
  * Represents a MIDI track, containing a sequence of notes and Chords, as well as an instrument.
+ * <p>
+ * The track keeps an index of the tick at which each element starts, so that the element
+ * at a given time can be found by binary search. The index is extended as elements are
+ * added, and updated from the point of change when elements are set or removed. Changing
+ * the duration of a Note or Chord directly, after it has been added, is not seen by the
+ * index; setting the element again with set(index, element) brings it up to date.
  * @author Andrew Goldin
  */
 public class Track implements Playable {
 
 	private ArrayList<Playable> elements;
 	private Instrument instrument;
+	// the start tick of each element, followed by the end of the track. Only the first
+	// indexed + 1 entries are up to date; the rest are filled in when first needed.
+	private long[] onsets = new long[1];
+	private int indexed;
 
 	/**
 	 * Default constructor: An empty piano track.
@@ -40,6 +53,13 @@ public class Track implements Playable {
 		if (p instanceof Note || p instanceof Chord) {
 			elements.add(p);
 		}
+		else if (p instanceof PackedTrack) {
+			// copy the elements, since views into a packed track do not outlive changes to it
+			PackedTrack s = (PackedTrack) p;
+			for (int i = 0; i < s.getNumElements(); i++) {
+				elements.add(s.copyOf(i));
+			}
+		}
 		else if (p instanceof Track) {
 			Track s = (Track) p;
 			Playable[] temp = s.getElements();
@@ -58,6 +78,7 @@ public class Track implements Playable {
 	public void set(int index, Playable p) {
 		if (p instanceof Note || p instanceof Chord) {
 			elements.set(index, p);
+			invalidateFrom(index);
 		}
 	}
 
@@ -67,6 +88,7 @@ public class Track implements Playable {
 	 */
 	public void remove(int index) {
 		elements.remove(index);
+		invalidateFrom(index);
 	}
 	
 	/**
@@ -75,6 +97,7 @@ public class Track implements Playable {
 	public void clear() {
 		elements.clear();
 		instrument = new Instrument(Instrument.PIANO);
+		indexed = 0;
 	}
 
 	/**
@@ -128,28 +151,365 @@ public class Track implements Playable {
 		return instrument;
 	}
 
+	/**
+	 * Returns a deep copy of the track: changes to the copy or its Notes and Chords do
+	 * not affect this track, and vice versa. Immutable notes and chords are shared.
+	 * @return a copy of the track
+	 */
+	public Track copy() {
+		Track t = copyRange(0, getNumElements());
+		t.setInstrument(instrument.getInstrumentNumber());
+		return t;
+	}
+
+	// a new empty track of the same kind as this one, used by copy and slice
+	Track newTrack() {
+		return new Track();
+	}
+
+	// a new piano track holding copies of the elements from index from up to to
+	Track copyRange(int from, int to) {
+		Track t = newTrack();
+		t.elements.ensureCapacity(to - from);
+		for (int i = from; i < to; i++) {
+			Playable p = elements.get(i);
+			if (p instanceof ImmutableNote || p instanceof ImmutableChord) {
+				t.elements.add(p); // cannot change, so can be shared
+			}
+			else if (p instanceof Note) {
+				Note n = (Note) p;
+				t.elements.add(new Note(n.getPitch(), n.getVelocity(), n.getDuration()));
+			}
+			else {
+				Chord c = (Chord) p;
+				t.elements.add(new Chord(c.getPitches().clone(), c.getVelocity(), c.getDuration()));
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Returns the total duration of the track, which is the tick at which its last
+	 * element ends. Takes constant time as long as the track has only been added to
+	 * since the last call.
+	 * @return the duration of the track in midi ticks
+	 */
+	public long getTotalDuration() {
+		return getStartTick(getNumElements());
+	}
+
+	/**
+	 * Returns the tick at which an element starts, which is the sum of the durations of
+	 * the elements before it. Giving the number of elements returns the total duration.
+	 * @param n the position of the element
+	 * @return the start of the element in midi ticks
+	 */
+	public long getStartTick(int n) {
+		if (n < 0 || n > getNumElements()) {
+			throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + getNumElements());
+		}
+		index(n);
+		return onsets[n];
+	}
+
+	/**
+	 * Returns the position of the element that is sounding at the given tick, found by
+	 * binary search. Elements with no duration are never sounding.
+	 * @param tick the time in midi ticks
+	 * @return the position of the element, or -1 if the tick is before the start or at
+	 * or after the end of the track
+	 */
+	public int getElementIndexAt(long tick) {
+		int n = getNumElements();
+		if (tick < 0 || tick >= getTotalDuration()) return -1;
+		// the last element starting at or before the tick
+		return firstStartingAfter(tick, 0, n) - 1;
+	}
+
+	/**
+	 * Returns a new track with copies of the elements that start at or after startTick and
+	 * before endTick, and the same instrument. For example, with the default resolution
+	 * of 16 ticks per beat, slice(64 * 200, 64 * 240) gives bars 200 to 239 of a track in
+	 * 4/4 time. Elements are not cut off, so the last one may last beyond endTick.
+	 * @param startTick the start of the range in midi ticks
+	 * @param endTick the end of the range in midi ticks
+	 * @return the new track
+	 */
+	public Track slice(long startTick, long endTick) {
+		int n = getNumElements();
+		getTotalDuration(); // index everything
+		int from = firstStartingAfter(startTick - 1, 0, n);
+		int to = Math.max(from, firstStartingAfter(endTick - 1, from, n));
+		Track t = copyRange(from, to);
+		t.setInstrument(instrument.getInstrumentNumber());
+		return t;
+	}
+
+	// the first position from lo up to hi whose element starts after the tick, or hi if
+	// there is none. The index must be up to date as far as hi.
+	private int firstStartingAfter(long tick, int lo, int hi) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (onsets[mid] <= tick) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Converts the durations of the track from one resolution (ticks per beat) to another.
+	 * Rather than scaling each duration on its own, which would let rounding errors add
+	 * up along the track, the start and end tick of every element is converted exactly
+	 * and rounded to the nearest tick, and each new duration is the difference. Elements
+	 * therefore never drift by more than half a tick from their exact position, and when
+	 * the new resolution is a multiple of the old one, nothing is rounded at all.
+	 * @param fromResolution the resolution the durations are in
+	 * @param toResolution the resolution to convert them to
+	 * @throws ArithmeticException if a duration becomes too long to store
+	 */
+	public void rescale(int fromResolution, int toResolution) {
+		if (fromResolution < 1 || toResolution < 1) {
+			throw new IllegalArgumentException("Resolutions must be positive: "
+					+ fromResolution + ", " + toResolution);
+		}
+		if (fromResolution == toResolution) return;
+		setDurations(rescaledDurations(fromResolution, toResolution),
+				Collections.newSetFromMap(new IdentityHashMap<Playable, Boolean>()));
+	}
+
+	// works out the durations of the elements in another resolution, without changing them
+	int[] rescaledDurations(int fromResolution, int toResolution) {
+		int n = getNumElements();
+		// the durations may have been changed in place since the index was built, so the
+		// start ticks are summed again here
+		indexed = 0;
+		index(n);
+		int[] durations = new int[n];
+		long half = fromResolution / 2, previous = 0;
+		for (int i = 0; i < n; i++) {
+			long end = (onsets[i + 1] * toResolution + half) / fromResolution;
+			durations[i] = Math.toIntExact(end - previous);
+			previous = end;
+		}
+		return durations;
+	}
+
+	// gives every element its new duration. The same Note or Chord can be held more than
+	// once, as add shares them, so only the first place it is met changes it; the others
+	// get a copy with their own duration. done holds the elements and tracks already done.
+	void setDurations(int[] durations, Set<Playable> done) {
+		if (!done.add(this)) return; // the same track held twice by a sequence
+		for (int i = 0; i < durations.length; i++) {
+			setDurationOf(i, durations[i], done);
+		}
+		indexed = 0;
+	}
+
+	// sets the duration of element i, replacing it if it cannot be changed, or if it has
+	// been changed already where it is held elsewhere
+	void setDurationOf(int i, int d, Set<Playable> done) {
+		Playable p = elements.get(i);
+		if (p instanceof ImmutableNote || (p instanceof Note && !done.add(p))) {
+			Note n = (Note) p;
+			elements.set(i, p instanceof ImmutableNote ? Note.of(n.getPitch(), n.getVelocity(), d)
+					: new Note(n.getPitch(), n.getVelocity(), d));
+		}
+		else if (p instanceof ImmutableChord) {
+			Chord c = (Chord) p;
+			elements.set(i, new ImmutableChord(c.getPitches(), c.getVelocity(), d));
+		}
+		else if (p instanceof Chord && !done.add(p)) {
+			Chord c = (Chord) p;
+			elements.set(i, new Chord(c.getPitches().clone(), c.getVelocity(), d));
+		}
+		else if (p instanceof Note) {
+			((Note) p).setDuration(d);
+		}
+		else {
+			((Chord) p).setDuration(d);
+		}
+	}
+
+	// brings the start ticks up to date as far as element n
+	private void index(int n) {
+		if (indexed >= n) return;
+		if (onsets.length < n + 1) {
+			onsets = Arrays.copyOf(onsets, Math.max(n + 1, onsets.length * 2));
+		}
+		long tick = onsets[indexed];
+		for (int i = indexed; i < n; i++) {
+			tick += durationOf(i);
+			onsets[i + 1] = tick;
+		}
+		indexed = n;
+	}
+
+	// marks the start ticks after element n as out of date
+	void invalidateFrom(int n) {
+		if (indexed > n) indexed = n;
+	}
+
+	// the duration of element i
+	int durationOf(int i) {
+		Playable p = elements.get(i);
+		return p instanceof Note ? ((Note) p).getDuration() : ((Chord) p).getDuration();
+	}
+
 	/**
 	 * Transposes all notes and chords in the track.
 	 * @param steps the number of steps (positive or negative) to tranpose the track
 	 */
 	public void transpose(int steps) {
 		for (int i = 0; i < elements.size(); i++) {
-			elements.get(i).transpose(steps);
+			Playable p = elements.get(i);
+			// immutable elements may be shared, so they are replaced rather than changed
+			if (p instanceof ImmutableNote) elements.set(i, ((ImmutableNote) p).transposed(steps));
+			else if (p instanceof ImmutableChord) elements.set(i, ((ImmutableChord) p).transposed(steps));
+			else p.transpose(steps);
+		}
+	}
+
+	/**
+	 * Transposes all notes and chords in the track at once, treating pitches that would
+	 * leave the range 0-127 according to the given policy. Unlike transpose(int), which
+	 * leaves alone each element that cannot be moved, the whole track is moved together:
+	 * with REJECT, the pitch range of the track is checked before anything is changed.
+	 * @param steps the number of steps (positive or negative) to transpose the track
+	 * @param policy what to do with pitches that would go out of range
+	 * @throws IllegalArgumentException if the policy is REJECT and a pitch would go out
+	 * of range, in which case the track is unchanged
+	 */
+	public void transpose(int steps, TransposePolicy policy) {
+		checkTranspose(steps, policy);
+		applyTranspose(steps, policy, Collections.newSetFromMap(new IdentityHashMap<Playable, Boolean>()));
+	}
+
+	// checks that the track can be transposed under the policy, finding its lowest and
+	// highest pitches in a single pass
+	void checkTranspose(int steps, TransposePolicy policy) {
+		if (policy != TransposePolicy.REJECT) return;
+		int lowest = Integer.MAX_VALUE, highest = Integer.MIN_VALUE;
+		for (int i = 0; i < elements.size(); i++) {
+			Playable p = elements.get(i);
+			if (p instanceof Note) {
+				int pitch = ((Note) p).getPitch();
+				lowest = Math.min(lowest, pitch);
+				highest = Math.max(highest, pitch);
+			}
+			else {
+				Chord c = (Chord) p;
+				if (c.getSize() == 0) continue;
+				lowest = Math.min(lowest, c.getLowestPitch());
+				highest = Math.max(highest, c.getHighestPitch());
+			}
+		}
+		policy.check(lowest, highest, steps);
+	}
+
+	// transposes every element, once checkTranspose has passed. The same Note or Chord
+	// can be held more than once, as add shares them, so each one is shifted only the
+	// first time it is met; done holds those already shifted, and the tracks already done.
+	void applyTranspose(int steps, TransposePolicy policy, Set<Playable> done) {
+		if (!done.add(this)) return; // the same track held twice by a sequence
+		for (int i = 0; i < elements.size(); i++) {
+			Playable p = elements.get(i);
+			if (!(p instanceof ImmutableNote || p instanceof ImmutableChord) && !done.add(p)) {
+				continue;
+			}
+			if (p instanceof Note) {
+				Note n = (Note) p;
+				int pitch = policy.shift(n.getPitch(), steps);
+				// immutable elements may be shared, so they are replaced rather than changed
+				if (n instanceof ImmutableNote) elements.set(i, Note.of(pitch, n.getVelocity(), n.getDuration()));
+				else n.setPitch(pitch);
+			}
+			else {
+				Chord c = (Chord) p;
+				int[] pitches = c.getPitches();
+				if (c instanceof ImmutableChord) pitches = pitches.clone();
+				for (int j = 0; j < pitches.length; j++) {
+					pitches[j] = policy.shift(pitches[j], steps);
+				}
+				if (c instanceof ImmutableChord) {
+					elements.set(i, new ImmutableChord(pitches, c.getVelocity(), c.getDuration()));
+				}
+				else {
+					c.setPitches(pitches); // sorts them again, since wrapping can change their order
+				}
+			}
 		}
 	}
 
+	// renders the notes and chords of the track to the sink on the given channel,
+	// starting at the given tick, and returns the tick at which the track ends
+	long render(int channel, long tick, MidiEventSink sink)
+			throws InvalidMidiDataException, IOException {
+		for (int i = 0; i < elements.size(); i++) {
+			Playable p = elements.get(i);
+			if (p instanceof Note) {
+				Note currentNote = (Note) p;
+				sink.shortMessage(tick, ShortMessage.NOTE_ON, channel,
+						currentNote.getPitch(), currentNote.getVelocity());
+				tick += currentNote.getDuration();
+				sink.shortMessage(tick, ShortMessage.NOTE_OFF, channel,
+						currentNote.getPitch(), 0);
+			}
+			else if (p instanceof Chord) {
+				Chord currentChord = (Chord) p;
+				int size = currentChord.getSize(), velocity = currentChord.getVelocity();
+				for (int j = 0; j < size; j++) {
+					sink.shortMessage(tick, ShortMessage.NOTE_ON, channel,
+							currentChord.getPitch(j), velocity);
+				}
+				tick += currentChord.getDuration();
+				for (int j = 0; j < size; j++) {
+					sink.shortMessage(tick, ShortMessage.NOTE_OFF, channel,
+							currentChord.getPitch(j), 0);
+				}
+			}
+		}
+		return tick;
+	}
+
 	/**
 	 * Returns a String representation of the track, including the number of elements,
 	 * instrument, and the String representation of each element.
 	 * @return the string representation of the track
 	 */
 	public String toString() {
-		String s = "TRACK: Elements = " + elements.size() + ", Instrument = " + instrument.toString() + "\n";
-		for (int i = 0; i < elements.size(); i++) {
-			s += "   " + elements.get(i).toString() + "\n";
+		StringBuilder sb = new StringBuilder(64 + 56 * getNumElements());
+		try {
+			dump(sb, Integer.MAX_VALUE);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen, a StringBuilder does not throw
 		}
-		s += "END TRACK";
-		return s;
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the String representation of the track to the given output, one element at
+	 * a time, so that a large track can be written to a file or stream without building
+	 * the whole String first. At most the given number of elements are written, followed
+	 * by a line giving the number left out.
+	 * @param out where to write, such as a Writer, StringBuilder or PrintStream
+	 * @param limit the greatest number of elements to write
+	 * @throws IOException if the output cannot be written
+	 */
+	public void dump(Appendable out, int limit) throws IOException {
+		int n = getNumElements();
+		out.append(header()).append('\n');
+		for (int i = 0; i < n && i < limit; i++) {
+			out.append("   ").append(getElement(i).toString()).append('\n');
+		}
+		if (n > limit) {
+			out.append("   ... ").append(String.valueOf(n - Math.max(limit, 0))).append(" more\n");
+		}
+		out.append("END TRACK");
+	}
+
+	// the first line of the String representation
+	String header() {
+		return "TRACK: Elements = " + getNumElements() + ", Instrument = " + instrument.toString();
 	}
 
 }
\ No newline at end of file
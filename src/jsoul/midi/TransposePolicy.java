@@ -0,0 +1,45 @@
+package jsoul.midi;
+
+/**
+ * What a bulk transpose does with pitches that would leave the MIDI range of 0-127.
+ * Whichever policy is used, the transpose either changes every pitch or none of them.
+ * @author Andrew Goldin
+ */
+public enum TransposePolicy {
+
+	/**
+	 * Pitches that would go out of range are held at 0 or 127.
+	 */
+	CLIP,
+
+	/**
+	 * If any pitch would go out of range, nothing is transposed and an
+	 * IllegalArgumentException is thrown.
+	 */
+	REJECT,
+
+	/**
+	 * Pitches that would go out of range are moved by whole octaves back into range,
+	 * keeping their note names.
+	 */
+	WRAP;
+
+	// the pitch moved by the given number of steps, brought back into range following
+	// the policy. REJECT does not change out of range pitches, which must be checked beforehand.
+	int shift(int pitch, int steps) {
+		int p = pitch + steps;
+		assert this != REJECT || p >= 0 && p <= 127 : "pitch " + p + " was not checked";
+		if (p >= 0 && p <= 127 || this == REJECT) return p;
+		if (this == CLIP) return p < 0 ? 0 : 127;
+		return p < 0 ? p + 12 * ((11 - p) / 12) : p - 12 * ((p - 116) / 12);
+	}
+
+	// checks, for REJECT, that a transpose keeps the lowest and highest pitches in range
+	void check(int lowest, int highest, int steps) {
+		if (this == REJECT && lowest <= highest && (lowest + steps < 0 || highest + steps > 127)) {
+			throw new IllegalArgumentException("Transposing by " + steps + " would move pitch "
+					+ (lowest + steps < 0 ? lowest : highest) + " out of range");
+		}
+	}
+
+}
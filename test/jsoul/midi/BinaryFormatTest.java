@@ -0,0 +1,59 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class BinaryFormatTest {
+
+	@Test
+	public void roundTripsBytes() throws IOException {
+		Sequence s = SequenceAssert.sample();
+		Sequence read = BinaryFormat.fromBytes(BinaryFormat.toBytes(s));
+		SequenceAssert.assertSameSequence(s, read);
+		assertTrue("packed track", read.getTrack(2) instanceof PackedTrack);
+	}
+
+	@Test
+	public void roundTripsStreams() throws IOException {
+		Sequence s = SequenceAssert.sample();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryFormat.write(s, new DataOutputStream(bytes));
+		BinaryFormat.write(s, new DataOutputStream(bytes));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		SequenceAssert.assertSameSequence(s, BinaryFormat.read(in));
+		SequenceAssert.assertSameSequence(s, BinaryFormat.read(in));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void roundTripsBuffers() throws IOException {
+		Sequence s = SequenceAssert.sample();
+		ByteBuffer b = ByteBuffer.allocate(1024);
+		BinaryFormat.write(s, b);
+		BinaryFormat.write(s, b);
+		b.flip();
+		SequenceAssert.assertSameSequence(s, BinaryFormat.read(b));
+		SequenceAssert.assertSameSequence(s, BinaryFormat.read(b));
+		assertFalse(b.hasRemaining());
+	}
+
+	@Test
+	public void keepsChordsWithoutPitchesApartFromNotes() throws IOException {
+		Track t = new Track(new Chord(new int[0], 64, 16), new Note(60, 64, 16), new Chord("", 64, 8));
+		Sequence s = new Sequence(t);
+		SequenceAssert.assertSameSequence(s, BinaryFormat.fromBytes(BinaryFormat.toBytes(s)));
+	}
+
+	@Test(expected = EOFException.class)
+	public void rejectsCutShortData() throws IOException {
+		byte[] data = BinaryFormat.toBytes(SequenceAssert.sample());
+		BinaryFormat.read(ByteBuffer.wrap(data, 0, data.length - 1));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherData() throws IOException {
+		BinaryFormat.fromBytes("MThd, not jsoul".getBytes("US-ASCII"));
+	}
+
+}
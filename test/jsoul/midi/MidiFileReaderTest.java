@@ -0,0 +1,73 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import javax.sound.midi.*;
+import org.junit.Test;
+
+public class MidiFileReaderTest {
+
+	// reads a type 1 file with a single track of the given events, each given as
+	// tick, status, data1, data2
+	private static Track read(int... events) throws Exception {
+		javax.sound.midi.Sequence s = new javax.sound.midi.Sequence(javax.sound.midi.Sequence.PPQ, 16);
+		javax.sound.midi.Track t = s.createTrack();
+		for (int i = 0; i < events.length; i += 4) {
+			t.add(new MidiEvent(new ShortMessage(events[i + 1], events[i + 2], events[i + 3]), events[i]));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MidiSystem.write(s, 1, out);
+		return new MidiFileReader(ByteBuffer.wrap(out.toByteArray())).read().getTrack(0);
+	}
+
+	private static void assertNote(Playable p, int pitch, int velocity, int duration) {
+		assertTrue(p + " is a Note", p instanceof Note);
+		Note n = (Note) p;
+		assertEquals("pitch", pitch, n.getPitch());
+		assertEquals("velocity", velocity, n.getVelocity());
+		assertEquals("duration", duration, n.getDuration());
+	}
+
+	@Test
+	public void readsNotesRetriggeredBeforeTheirNoteOff() throws Exception {
+		// the next note-on comes before the note-off of the note before it, at the same tick
+		Track t = read(0, 0x90, 60, 64, 16, 0x90, 60, 64, 16, 0x80, 60, 0,
+				32, 0x90, 60, 64, 32, 0x80, 60, 0, 48, 0x90, 60, 64, 48, 0x80, 60, 0, 64, 0x80, 60, 0);
+		assertEquals(4, t.getNumElements());
+		for (int i = 0; i < 4; i++) {
+			assertNote(t.getElement(i), 60, 64, 16);
+		}
+	}
+
+	@Test
+	public void readsRetriggeredChords() throws Exception {
+		Track t = read(0, 0x90, 60, 64, 0, 0x90, 64, 64, 16, 0x90, 60, 80, 16, 0x90, 64, 80,
+				16, 0x80, 60, 0, 16, 0x80, 64, 0, 32, 0x80, 60, 0, 32, 0x80, 64, 0);
+		assertEquals(2, t.getNumElements());
+		for (int i = 0; i < 2; i++) {
+			Chord c = (Chord) t.getElement(i);
+			assertArrayEquals(new int[] { 60, 64 }, c.getPitches());
+			assertEquals(16, c.getDuration());
+		}
+	}
+
+	@Test
+	public void treatsNoteOnsWithoutVelocityAsNoteOffs() throws Exception {
+		Track t = read(0, 0x90, 60, 100, 16, 0x90, 60, 0, 16, 0x90, 62, 90, 24, 0x90, 62, 0,
+				32, 0x90, 64, 80, 48, 0x90, 64, 0);
+		assertEquals(4, t.getNumElements());
+		assertNote(t.getElement(0), 60, 100, 16);
+		assertNote(t.getElement(1), 62, 90, 8);
+		assertNote(t.getElement(2), 62, 0, 8); // the rest takes the pitch of the last note
+		assertNote(t.getElement(3), 64, 80, 16);
+	}
+
+	@Test
+	public void cutsOverlappingNotesShort() throws Exception {
+		Track t = read(0, 0x90, 60, 64, 8, 0x90, 67, 64, 16, 0x80, 60, 0, 24, 0x80, 67, 0);
+		assertEquals(2, t.getNumElements());
+		assertNote(t.getElement(0), 60, 64, 8);
+		assertNote(t.getElement(1), 67, 64, 16);
+	}
+
+}
@@ -0,0 +1,39 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class PackedTrackTest {
+
+	private static Chord emptyChordAt(int position) {
+		PackedTrack t = new PackedTrack();
+		if (position > 0) t.add(new Note(60, 64, 16));
+		t.add(new Chord(new int[0], 64, 16));
+		t.add(new Note(72, 64, 16));
+		return (Chord) t.getElement(position);
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void hasNoHighestPitchInAnEmptyChord() {
+		emptyChordAt(1).getHighestPitch();
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void hasNoLowestPitchInAnEmptyChord() {
+		emptyChordAt(1).getLowestPitch();
+	}
+
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void hasNoHighestPitchInAnEmptyFirstChord() {
+		emptyChordAt(0).getHighestPitch();
+	}
+
+	@Test
+	public void readsThePitchRangeOfAChord() {
+		PackedTrack t = new PackedTrack(new Note(50, 64, 16), new Chord(new int[] { 67, 60, 64 }, 64, 16));
+		Chord c = (Chord) t.getElement(1);
+		assertEquals(60, c.getLowestPitch());
+		assertEquals(67, c.getHighestPitch());
+		assertEquals(0, ((Chord) new PackedTrack(new Chord(new int[0], 64, 16)).getElement(0)).getSize());
+	}
+
+}
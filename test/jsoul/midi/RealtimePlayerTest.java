@@ -0,0 +1,32 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import java.util.concurrent.*;
+import javax.sound.midi.*;
+import org.junit.Test;
+
+public class RealtimePlayerTest {
+
+	// takes the messages and does nothing with them
+	private static class NullReceiver implements Receiver {
+		public void send(MidiMessage message, long timeStamp) {
+		}
+		public void close() {
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void closesFromACallback() throws Exception {
+		final RealtimePlayer player = new RealtimePlayer(new NullReceiver());
+		final CountDownLatch closed = new CountDownLatch(1);
+		player.enqueue(new Track(new Note(60, 64, 4), new Note(62, 64, 4))).thenRun(new Runnable() {
+			public void run() {
+				player.close(); // runs on the sending thread
+				closed.countDown();
+			}
+		});
+		assertTrue("close returned", closed.await(5, TimeUnit.SECONDS));
+		assertEquals(5, player.getNumEventsSent()); // a program change and two notes
+		assertTrue("closed", player.enqueue(new Track()).isCompletedExceptionally());
+	}
+
+}
@@ -0,0 +1,87 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+
+// compares Sequences element by element, for the round trip tests of the formats
+final class SequenceAssert {
+
+	private SequenceAssert() {
+	}
+
+	// a sequence using every feature the formats keep
+	static Sequence sample() {
+		Sequence s = new Sequence();
+		s.setResolution(480);
+		TempoMap map = new TempoMap();
+		map.setTempo(0, 600000);
+		map.setTempo(1920, 400000);
+		map.setTimeSignature(0, 3, 4);
+		map.setTimeSignature(5760, 7, 8);
+		s.setTempoMap(map);
+		Track t = new Track();
+		t.setInstrument(Instrument.CHOIR_AAHS);
+		t.add(new Note(60, 64, 480));
+		t.add(new Chord(new int[] { 60, 64, 67 }, 100, 960));
+		t.add(new Chord(new int[0], 0, 240)); // a chord without pitches
+		t.add(new Note(0, 0, 0));
+		t.add(new Note(127, 127, 100000));
+		s.add(t);
+		PercussionTrack p = new PercussionTrack();
+		p.add(new Note(PercussionTrack.ACOUSTIC_BASS_DRUM, 100, 120));
+		p.add(new Chord(new int[] { 36, 42 }, 90, 120));
+		s.add(p);
+		PackedTrack k = new PackedTrack();
+		k.setInstrument(Instrument.HONKY_TONK_PIANO);
+		k.add(new Chord(new int[0], 10, 20));
+		k.add(new Note(72, 50, 30));
+		s.add(k);
+		s.add(new Track()); // an empty track
+		return s;
+	}
+
+	static void assertSameSequence(Sequence expected, Sequence actual) {
+		assertEquals("resolution", expected.getResolution(), actual.getResolution());
+		TempoMap e = expected.getTempoMap(), a = actual.getTempoMap();
+		assertEquals("tempo changes", e.getNumTempoChanges(), a.getNumTempoChanges());
+		for (int i = 0; i < e.getNumTempoChanges(); i++) {
+			assertEquals("tempo tick " + i, e.getTempoTick(i), a.getTempoTick(i));
+			assertEquals("tempo " + i, e.getMicrosecondsPerBeat(i), a.getMicrosecondsPerBeat(i));
+		}
+		assertEquals("time signatures", e.getNumTimeSignatures(), a.getNumTimeSignatures());
+		for (int i = 0; i < e.getNumTimeSignatures(); i++) {
+			assertEquals("time signature tick " + i, e.getTimeSignatureTick(i), a.getTimeSignatureTick(i));
+			assertEquals("numerator " + i, e.getNumerator(i), a.getNumerator(i));
+			assertEquals("denominator " + i, e.getDenominator(i), a.getDenominator(i));
+		}
+		assertEquals("tracks", expected.getNumTracks(), actual.getNumTracks());
+		for (int i = 0; i < expected.getNumTracks(); i++) {
+			assertSameTrack(i, expected.getTrack(i), actual.getTrack(i));
+		}
+	}
+
+	private static void assertSameTrack(int n, Track expected, Track actual) {
+		String track = "track " + n;
+		assertEquals(track + " kind", expected.getClass(), actual.getClass());
+		assertEquals(track + " instrument", expected.getInstrument().getInstrumentNumber(),
+				actual.getInstrument().getInstrumentNumber());
+		assertEquals(track + " elements", expected.getNumElements(), actual.getNumElements());
+		for (int i = 0; i < expected.getNumElements(); i++) {
+			String element = track + " element " + i;
+			Playable e = expected.getElement(i), a = actual.getElement(i);
+			if (e instanceof Note) {
+				assertTrue(element + " is a Note", a instanceof Note);
+				Note x = (Note) e, y = (Note) a;
+				assertEquals(element + " pitch", x.getPitch(), y.getPitch());
+				assertEquals(element + " velocity", x.getVelocity(), y.getVelocity());
+				assertEquals(element + " duration", x.getDuration(), y.getDuration());
+			}
+			else {
+				assertTrue(element + " is a Chord", a instanceof Chord);
+				Chord x = (Chord) e, y = (Chord) a;
+				assertArrayEquals(element + " pitches", x.getPitches(), y.getPitches());
+				assertEquals(element + " velocity", x.getVelocity(), y.getVelocity());
+				assertEquals(element + " duration", x.getDuration(), y.getDuration());
+			}
+		}
+	}
+
+}
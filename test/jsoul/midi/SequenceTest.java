@@ -0,0 +1,30 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class SequenceTest {
+
+	@Test
+	public void rescalesElementsSharedBetweenTracksOnce() {
+		Chord c = new Chord(new int[] { 60, 64, 67 }, 64, 32);
+		Track first = new Track(c, new Note(72, 64, 32), c);
+		Track second = new Track();
+		second.add(first); // shares the elements of the first track
+		Sequence s = new Sequence(first, second);
+		s.setResolution(16);
+		s.rescale(480);
+		assertEquals(480, s.getResolution());
+		assertEquals(2880, first.getTotalDuration());
+		assertEquals(2880, second.getTotalDuration());
+	}
+
+	@Test
+	public void rescalesATrackHeldTwiceOnce() {
+		Track t = new Track(new Note(60, 64, 16), new Note(62, 64, 16));
+		Sequence s = new Sequence(t, t);
+		s.setResolution(16);
+		s.rescale(48);
+		assertEquals(96, t.getTotalDuration());
+	}
+
+}
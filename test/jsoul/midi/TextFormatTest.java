@@ -0,0 +1,50 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import java.io.*;
+import org.junit.Test;
+
+public class TextFormatTest {
+
+	@Test
+	public void roundTripsText() throws IOException {
+		Sequence s = SequenceAssert.sample();
+		String text = TextFormat.toText(s);
+		Sequence read = TextFormat.parse(text);
+		SequenceAssert.assertSameSequence(s, read);
+		assertTrue("packed track", read.getTrack(2) instanceof PackedTrack);
+		assertEquals(text, TextFormat.toText(read));
+	}
+
+	@Test
+	public void roundTripsThroughReaderAndWriter() throws IOException {
+		Sequence s = new Sequence();
+		Track t = new Track();
+		for (int i = 0; i < 5000; i++) { // longer than the parser's buffer
+			t.add(i % 3 == 0 ? new Chord(new int[] { i % 100, i % 100 + 4 }, i % 128, i) : new Note(i % 128, 64, i));
+		}
+		s.add(t);
+		StringWriter out = new StringWriter();
+		TextFormat.write(s, out);
+		SequenceAssert.assertSameSequence(s, TextFormat.read(new StringReader(out.toString())));
+	}
+
+	@Test
+	public void skipsCommentsAndBlankLines() throws IOException {
+		Sequence s = TextFormat.parse("# a comment\njsoul-text 1\n\nresolution 96\r\n"
+				+ "track 5\n  N 60 64 96  \n# another\nC 80 48 67 60\n");
+		assertEquals(96, s.getResolution());
+		assertEquals(5, s.getTrack(0).getInstrument().getInstrumentNumber());
+		assertArrayEquals(new int[] { 60, 67 }, ((Chord) s.getTrack(0).getElement(1)).getPitches());
+	}
+
+	@Test
+	public void reportsTheLineOfAnError() {
+		try {
+			TextFormat.parse("jsoul-text 1\ntrack 0\nN 60 x 16\n");
+			fail("parsed a bad number");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("line 3:"));
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+package jsoul.midi;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class TrackTest {
+
+	@Test
+	public void rescalesAnElementHeldTwiceOnce() {
+		Note n = new Note(60, 64, 3);
+		Track t = new Track(n, n);
+		t.rescale(16, 24);
+		assertEquals(9, t.getTotalDuration());
+		assertEquals(5, ((Note) t.getElement(0)).getDuration()); // 4.5 rounded
+		assertEquals(4, ((Note) t.getElement(1)).getDuration());
+	}
+
+	@Test
+	public void rescalesDurationsChangedInPlace() {
+		Track t = new Track();
+		for (int i = 0; i < 4; i++) {
+			t.add(new Note(60, 64, 16));
+		}
+		t.getTotalDuration(); // build the index
+		((Note) t.getElement(0)).setDuration(4);
+		t.rescale(16, 32);
+		assertEquals(8, ((Note) t.getElement(0)).getDuration());
+		assertEquals(32, ((Note) t.getElement(3)).getDuration());
+		assertEquals(104, t.getTotalDuration());
+	}
+
+}